@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.benchmarks;
+
+import io.enmasse.iot.DeviceTemperature;
+import io.enmasse.iot.common.DevicePartitions;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.proton.ProtonClient;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonHelper;
+import io.vertx.proton.ProtonReceiver;
+import io.vertx.proton.ProtonSender;
+import org.apache.qpid.proton.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Analyzer stage standing in for the Spark driver in the load tests : it
+ * forwards every temperature value to the max address as it was the max
+ * over a window made of that value only, so that the end-to-end latency
+ * doesn't include the streaming batch and window durations. With more
+ * partitions, each value goes to the max address partition of its device
+ * as the Spark driver does
+ */
+public class AnalyzerStage extends AbstractVerticle {
+
+    private static final Logger log = LoggerFactory.getLogger(AnalyzerStage.class);
+
+    private final String messagingHost;
+    private final int messagingPort;
+    private final String temperatureAddress;
+    private final String maxAddress;
+    private final int maxPartitions;
+
+    private ProtonConnection connection;
+
+    /**
+     * Constructor
+     *
+     * @param messagingHost messaging service hostname
+     * @param messagingPort messaging service port
+     * @param temperatureAddress    address to receive temperature values from
+     * @param maxAddress    address to send max temperature values to
+     * @param maxPartitions number of partitions of the max address
+     */
+    public AnalyzerStage(String messagingHost, int messagingPort, String temperatureAddress, String maxAddress, int maxPartitions) {
+        this.messagingHost = messagingHost;
+        this.messagingPort = messagingPort;
+        this.temperatureAddress = temperatureAddress;
+        this.maxAddress = maxAddress;
+        this.maxPartitions = maxPartitions;
+    }
+
+    @Override
+    public void start(Future<Void> startFuture) {
+
+        ProtonClient client = ProtonClient.create(this.vertx);
+        client.connect(this.messagingHost, this.messagingPort, done -> {
+
+            if (done.succeeded()) {
+
+                this.connection = done.result();
+                this.connection.open();
+
+                ProtonSender[] senders = new ProtonSender[this.maxPartitions];
+                int[] opening = { this.maxPartitions };
+                for (int i = 0; i < this.maxPartitions; i++) {
+
+                    String address = DevicePartitions.address(this.maxAddress, i, this.maxPartitions);
+                    senders[i] = this.connection.createSender(address);
+                    senders[i].openHandler(link -> {
+
+                        if (!link.succeeded()) {
+                            startFuture.tryFail(link.cause());
+                        } else if (--opening[0] == 0) {
+                            // receiving only when all the senders are ready, the forwarded messages are never lost
+                            this.receive(senders, startFuture);
+                        }
+                    });
+                    senders[i].open();
+                }
+
+            } else {
+                startFuture.fail(done.cause());
+            }
+        });
+    }
+
+    private void receive(ProtonSender[] senders, Future<Void> startFuture) {
+
+        ProtonReceiver receiver = this.connection.createReceiver(this.temperatureAddress);
+        receiver.handler((delivery, message) -> {
+
+            int partition = 0;
+            if (this.maxPartitions > 1) {
+                List<DeviceTemperature> deviceTemperatures = DeviceTemperature.fromMessage(message);
+                if (deviceTemperatures != null && !deviceTemperatures.isEmpty()) {
+                    partition = DevicePartitions.partition(deviceTemperatures.get(0).deviceId(), this.maxPartitions);
+                }
+            }
+
+            Message max = ProtonHelper.message();
+            max.setAddress(DevicePartitions.address(this.maxAddress, partition, this.maxPartitions));
+            max.setContentType(message.getContentType());
+            max.setBody(message.getBody());
+            senders[partition].send(max);
+        });
+        receiver.openHandler(l -> {
+            if (l.succeeded()) {
+                log.info("Forwarding from {} to {} ({} partitions)", this.temperatureAddress, this.maxAddress, this.maxPartitions);
+                startFuture.complete();
+            } else {
+                startFuture.tryFail(l.cause());
+            }
+        });
+        receiver.open();
+    }
+
+    @Override
+    public void stop() {
+        if (this.connection != null) {
+            this.connection.close();
+        }
+    }
+}
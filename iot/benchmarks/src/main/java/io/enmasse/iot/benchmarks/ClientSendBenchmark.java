@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.benchmarks;
+
+import io.enmasse.iot.transport.AmqpClient;
+import io.enmasse.iot.transport.Client;
+import io.enmasse.iot.transport.MqttClient;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the device transport clients sending temperature values
+ * to the in-process stand-in broker, waiting for every send completion
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ClientSendBenchmark {
+
+    private static final int BATCH = 1000;
+    private static final String ADDRESS = "temperature";
+
+    @Param({"amqp", "mqtt"})
+    public String transport;
+
+    private Vertx vertx;
+    private StandInBroker broker;
+    private Client client;
+    private Context context;
+    private byte[] payload;
+    private List<byte[]> batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        this.vertx = Vertx.vertx();
+        this.broker = new StandInBroker(this.vertx);
+        this.broker.start();
+
+        if ("amqp".equals(this.transport)) {
+            this.client = new AmqpClient("localhost", this.broker.amqpPort(), null, this.vertx);
+        } else {
+            this.client = new MqttClient("localhost", this.broker.mqttPort(), null, this.vertx);
+        }
+        this.client.init(new Properties());
+
+        // the clients aren't thread safe, sending always happens on the connection context
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        this.client.connect(done -> {
+            if (done.succeeded()) {
+                this.context = Vertx.currentContext();
+                connected.complete(null);
+            } else {
+                connected.completeExceptionally(done.cause());
+            }
+        });
+        connected.get(10, TimeUnit.SECONDS);
+
+        JsonObject json = new JsonObject();
+        json.put("device-id", "device-0");
+        json.put("temperature", 21);
+        this.payload = json.encode().getBytes();
+        this.batch = Collections.nCopies(BATCH, this.payload);
+
+        // the first send attaches the sender link, the measured ones shouldn't pay for it
+        CompletableFuture<String> attached = new CompletableFuture<>();
+        this.context.runOnContext(v -> this.client.send(ADDRESS, this.payload, attached::complete));
+        attached.get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.context.runOnContext(v -> this.client.disconnect());
+        this.broker.stop();
+        this.vertx.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void send() throws InterruptedException {
+
+        CountDownLatch sent = new CountDownLatch(BATCH);
+        this.context.runOnContext(v -> {
+            for (int i = 0; i < BATCH; i++) {
+                this.client.send(ADDRESS, this.payload, id -> sent.countDown());
+            }
+        });
+        if (!sent.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timeout waiting for " + sent.getCount() + " send completions");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendBatch() throws InterruptedException {
+
+        CountDownLatch sent = new CountDownLatch(BATCH);
+        this.context.runOnContext(v -> this.client.send(ADDRESS, this.batch, id -> sent.countDown()));
+        if (!sent.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timeout waiting for " + sent.getCount() + " send completions");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.benchmarks;
+
+import io.enmasse.iot.DeviceTemperature;
+import io.enmasse.iot.DeviceTemperatureDecoder;
+import io.enmasse.iot.common.BinaryCodec;
+import io.vertx.core.json.JsonObject;
+import org.apache.qpid.proton.amqp.Binary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding a temperature value on the device side and decoding it
+ * on the analyzer side, for the JSON and the binary payload formats
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private String deviceId;
+    private int temperature;
+
+    private byte[] json;
+    private Binary jsonBinary;
+    private byte[] binary;
+
+    @Setup
+    public void setup() {
+
+        this.deviceId = "device-4f2a1c";
+        this.temperature = 23;
+
+        JsonObject object = new JsonObject();
+        object.put(DeviceTemperature.JSON_DEVICEID, this.deviceId);
+        object.put(DeviceTemperature.JSON_TEMPERATURE, this.temperature);
+        this.json = object.encode().getBytes(StandardCharsets.UTF_8);
+        this.jsonBinary = new Binary(this.json);
+        this.binary = BinaryCodec.encodeTemperature(this.deviceId, this.temperature);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        JsonObject object = new JsonObject();
+        object.put(DeviceTemperature.JSON_DEVICEID, this.deviceId);
+        object.put(DeviceTemperature.JSON_TEMPERATURE, this.temperature);
+        return object.encode().getBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryCodec.encodeTemperature(this.deviceId, this.temperature);
+    }
+
+    @Benchmark
+    public DeviceTemperature decodeJson() {
+        return DeviceTemperature.fromJson(new String(this.json, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public DeviceTemperature decodeJsonStreaming() {
+        return DeviceTemperatureDecoder.decode(this.jsonBinary);
+    }
+
+    @Benchmark
+    public DeviceTemperature decodeBinary() {
+        return DeviceTemperature.fromBinary(this.binary, 0, this.binary.length);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.benchmarks;
+
+import io.enmasse.iot.common.DevicePartitions;
+import io.enmasse.iot.controller.thermostat.Thermostat;
+import io.enmasse.iot.controller.thermostat.ThermostatConfig;
+import io.enmasse.iot.transport.AmqpClient;
+import io.enmasse.iot.transport.Client;
+import io.enmasse.iot.transport.MqttClient;
+import io.vertx.core.Verticle;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load driver for the end-to-end device -> analyzer -> thermostat -> valve loop.
+ *
+ * Simulated devices send temperature values alternating between below the min
+ * and above the max, so that every value causes the Thermostat to send a command
+ * back. The loop latency is the time from sending a value to getting the
+ * corresponding command, reported with the throughput at regular intervals.
+ * The messaging service is the in-process stand-in broker, unless a host is
+ * configured; the analyzer is the in-process pass-through stage, while the
+ * Thermostat is the real one running in the same process, with as many
+ * instances as configured sharing the max address partitions.
+ */
+public class LoadDriver {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadDriver.class);
+
+    public static final String BROKER_HOST = "load.broker.host";
+    public static final String BROKER_AMQP_PORT = "load.broker.amqp.port";
+    public static final String BROKER_MQTT_PORT = "load.broker.mqtt.port";
+    public static final String TRANSPORT = "load.transport";
+    public static final String DEVICES = "load.devices";
+    public static final String CONNECTIONS = "load.connections";
+    public static final String INTERVAL = "load.interval";
+    public static final String WARMUP = "load.warmup";
+    public static final String DURATION = "load.duration";
+    public static final String REPORT_INTERVAL = "load.report.interval";
+    public static final String LOOP_TIMEOUT = "load.loop.timeout";
+
+    private static final String TEMPERATURE_ADDRESS = "temperature";
+    private static final String MAX_ADDRESS = "max";
+    private static final String CONTROL_PREFIX = "control";
+    private static final int MIN_TEMP = 15;
+    private static final int MAX_TEMP = 25;
+    private static final long START_TIMEOUT = 30000;
+
+    private final Properties config;
+    private final Vertx vertx = Vertx.vertx();
+    private final Random random = new Random();
+    private final List<Client> clients = new ArrayList<>();
+
+    private final Recorder latencies = new Recorder(3);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private long loopTimeout;
+
+    public LoadDriver(Properties config) {
+        this.config = config;
+    }
+
+    public void run() throws Exception {
+
+        String host = this.config.getProperty(BROKER_HOST, "");
+        int amqpPort = Integer.parseInt(this.config.getProperty(BROKER_AMQP_PORT, "5672"));
+        int mqttPort = Integer.parseInt(this.config.getProperty(BROKER_MQTT_PORT, "1883"));
+        String transport = this.config.getProperty(TRANSPORT, "amqp");
+        int devices = Integer.parseInt(this.config.getProperty(DEVICES, "100"));
+        int connections = Integer.parseInt(this.config.getProperty(CONNECTIONS, "10"));
+        int interval = Integer.parseInt(this.config.getProperty(INTERVAL, "1000"));
+        long warmup = Long.parseLong(this.config.getProperty(WARMUP, "10"));
+        long duration = Long.parseLong(this.config.getProperty(DURATION, "60"));
+        long reportInterval = Long.parseLong(this.config.getProperty(REPORT_INTERVAL, "5"));
+        this.loopTimeout = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(this.config.getProperty(LOOP_TIMEOUT, "10000")));
+
+        StandInBroker broker = null;
+        if (host.isEmpty()) {
+            broker = new StandInBroker(this.vertx);
+            broker.start();
+            host = "localhost";
+            amqpPort = broker.amqpPort();
+            mqttPort = broker.mqttPort();
+        }
+
+        // every value has to cause a command, whatever the Thermostat configuration is
+        this.config.setProperty(ThermostatConfig.TEMPERATURE_HYSTERESIS, "0");
+        this.config.setProperty(ThermostatConfig.COMMAND_RESEND_INTERVAL, "0");
+
+        // the max values are spread across the partitioned addresses, each Thermostat instance consuming its own ones
+        int maxPartitions = Integer.parseInt(this.config.getProperty(ThermostatConfig.MAX_PARTITIONS, "1"));
+        int instances = Integer.parseInt(this.config.getProperty(ThermostatConfig.INSTANCES, "1"));
+        instances = Math.max(1, Math.min(instances, maxPartitions));
+
+        this.deploy(new AnalyzerStage(host, amqpPort, TEMPERATURE_ADDRESS, MAX_ADDRESS, maxPartitions));
+        for (int i = 0; i < instances; i++) {
+
+            List<String> notificationAddresses = new ArrayList<>();
+            for (int p = i; p < maxPartitions; p += instances) {
+                notificationAddresses.add(DevicePartitions.address(MAX_ADDRESS, p, maxPartitions));
+            }
+            this.deploy(new Thermostat(host, amqpPort, null, null, null,
+                    notificationAddresses, CONTROL_PREFIX, MIN_TEMP, MAX_TEMP, this.config));
+        }
+        log.info("{} Thermostat instances over {} max address partitions", instances, maxPartitions);
+
+        List<CompletableFuture<Void>> started = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+
+            Client client = "mqtt".equals(transport) ?
+                    new MqttClient(host, mqttPort, null, this.vertx) :
+                    new AmqpClient(host, amqpPort, null, this.vertx);
+            client.init(this.config);
+            this.clients.add(client);
+
+            Map<String, SimulatedDevice> clientDevices = new HashMap<>();
+            for (int d = i; d < devices; d += connections) {
+                SimulatedDevice device = new SimulatedDevice(client, "device" + d);
+                clientDevices.put(device.controlAddress, device);
+            }
+            started.add(this.start(client, clientDevices, interval));
+        }
+        CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0])).get(START_TIMEOUT, TimeUnit.MILLISECONDS);
+        log.info("{} devices over {} {} connections sending every {} ms", devices, connections, transport, interval);
+
+        TimeUnit.SECONDS.sleep(warmup);
+        this.latencies.getIntervalHistogram();
+        long sentBase = this.sent.get();
+        long commandsBase = this.commands.get();
+        long lostBase = this.lost.get();
+
+        Histogram total = new Histogram(3);
+        Histogram intervalHistogram = null;
+        long sentLast = sentBase;
+        long commandsLast = commandsBase;
+        for (long elapsed = 0; elapsed < duration; elapsed += reportInterval) {
+
+            TimeUnit.SECONDS.sleep(reportInterval);
+
+            intervalHistogram = this.latencies.getIntervalHistogram(intervalHistogram);
+            total.add(intervalHistogram);
+            long sentNow = this.sent.get();
+            long commandsNow = this.commands.get();
+
+            log.info("{}", report("interval", intervalHistogram, (sentNow - sentLast) / (double) reportInterval,
+                    (commandsNow - commandsLast) / (double) reportInterval, this.lost.get() - lostBase));
+            sentLast = sentNow;
+            commandsLast = commandsNow;
+        }
+
+        log.info("{}", report("total", total, (sentLast - sentBase) / (double) duration,
+                (commandsLast - commandsBase) / (double) duration, this.lost.get() - lostBase));
+        if (broker != null) {
+            log.info("broker : received {}, delivered {}, dropped {}", broker.received(), broker.delivered(), broker.dropped());
+        }
+
+        for (Client client : this.clients) {
+            client.disconnect();
+        }
+        this.vertx.close();
+    }
+
+    private static String report(String label, Histogram histogram, double sentRate, double commandRate, long lost) {
+        return String.format("%s : sent %.1f msg/s, commands %.1f msg/s, loop latency p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms, lost %d",
+                label, sentRate, commandRate,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0,
+                lost);
+    }
+
+    private void deploy(Verticle verticle) throws Exception {
+
+        CompletableFuture<String> deployed = new CompletableFuture<>();
+        this.vertx.deployVerticle(verticle, done -> {
+            if (done.succeeded()) {
+                deployed.complete(done.result());
+            } else {
+                deployed.completeExceptionally(done.cause());
+            }
+        });
+        deployed.get(START_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private CompletableFuture<Void> start(Client client, Map<String, SimulatedDevice> clientDevices, int interval) {
+
+        CompletableFuture<Void> started = new CompletableFuture<>();
+
+        client.receivedHandler(messageDelivery -> {
+            SimulatedDevice device = clientDevices.get(messageDelivery.address());
+            if (device != null) {
+                device.commandReceived();
+            }
+        });
+
+        client.connect(done -> {
+
+            if (done.succeeded()) {
+
+                for (SimulatedDevice device : clientDevices.values()) {
+                    client.receive(device.controlAddress);
+                }
+
+                // an in range value attaches the link for sending temperatures, without causing any command
+                JsonObject json = new JsonObject();
+                json.put("device-id", "load-driver");
+                json.put("temperature", (MIN_TEMP + MAX_TEMP) / 2);
+                client.send(TEMPERATURE_ADDRESS, json.encode().getBytes(), id -> {
+
+                    // devices start with a random delay within the interval, avoiding bursts all at the same time
+                    for (SimulatedDevice device : clientDevices.values()) {
+                        this.vertx.setTimer(1 + this.random.nextInt(interval), t -> {
+                            device.send();
+                            this.vertx.setPeriodic(interval, p -> device.send());
+                        });
+                    }
+                    started.complete(null);
+                });
+
+            } else {
+                started.completeExceptionally(done.cause());
+            }
+        });
+        return started;
+    }
+
+    /**
+     * Device sending values and timing the commands, accessed only on its client context
+     */
+    private class SimulatedDevice {
+
+        private final Client client;
+        private final String controlAddress;
+        private final byte[] cold;
+        private final byte[] hot;
+        private final Deque<Long> pending = new ArrayDeque<>();
+        private boolean nextHot;
+
+        private SimulatedDevice(Client client, String deviceId) {
+            this.client = client;
+            this.controlAddress = CONTROL_PREFIX + "/" + deviceId;
+            this.cold = new JsonObject().put("device-id", deviceId).put("temperature", MIN_TEMP - 5).encode().getBytes();
+            this.hot = new JsonObject().put("device-id", deviceId).put("temperature", MAX_TEMP + 5).encode().getBytes();
+        }
+
+        private void send() {
+
+            long now = System.nanoTime();
+            while (!this.pending.isEmpty() && now - this.pending.peekFirst() > loopTimeout) {
+                this.pending.pollFirst();
+                lost.incrementAndGet();
+            }
+
+            this.pending.addLast(now);
+            this.client.send(TEMPERATURE_ADDRESS, this.nextHot ? this.hot : this.cold);
+            this.nextHot = !this.nextHot;
+            sent.incrementAndGet();
+        }
+
+        private void commandReceived() {
+
+            Long sendTime = this.pending.pollFirst();
+            if (sendTime != null) {
+                latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendTime));
+            }
+            commands.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Properties config = new Properties();
+        if (args.length > 0) {
+            try (InputStream input = new FileInputStream(args[0])) {
+                config.load(input);
+            }
+        }
+
+        new LoadDriver(config).run();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.benchmarks;
+
+import io.enmasse.iot.AnalyzerKryoRegistrator;
+import io.enmasse.iot.DeviceTemperature;
+import io.enmasse.iot.common.SensorMetric;
+import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.DeserializationStream;
+import org.apache.spark.serializer.JavaSerializer;
+import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.serializer.SerializationStream;
+import org.apache.spark.serializer.SerializerInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Spark serialization of the device values in the analyzer data path (receiver
+ * blocks and shuffles by device id), writing and reading them as key/value pairs the way a
+ * shuffle does, with the Java serializer and with Kryo and the analyzer classes registered.
+ * Running the class main reports the serialized bytes per value for both
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private static final int DEVICES = 100;
+    private static final int VALUES = 1000;
+
+    private static final ClassTag<Object> OBJECT_TAG = ClassTag$.MODULE$.apply(Object.class);
+
+    @Param({"java", "kryo"})
+    public String serializer;
+
+    /** humidity and pressure sent along with the temperature */
+    @Param({"false", "true"})
+    public boolean telemetry;
+
+    private SerializerInstance instance;
+    private DeviceTemperature[] values;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        this.instance = serializer(this.serializer);
+        this.values = values(this.telemetry);
+        this.serialized = this.serialize();
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SerializationStream stream = this.instance.serializeStream(out);
+        for (DeviceTemperature value : this.values) {
+            stream.writeKey(value.deviceId(), OBJECT_TAG);
+            stream.writeValue(value, OBJECT_TAG);
+        }
+        stream.close();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public int deserialize() {
+        DeserializationStream stream = this.instance.deserializeStream(new ByteArrayInputStream(this.serialized));
+        int sum = 0;
+        for (int i = 0; i < this.values.length; i++) {
+            stream.readKey(OBJECT_TAG);
+            sum += ((DeviceTemperature) stream.readValue(OBJECT_TAG)).temperature();
+        }
+        stream.close();
+        return sum;
+    }
+
+    private static SerializerInstance serializer(String name) {
+        SparkConf conf = new SparkConf(false);
+        if ("kryo".equals(name)) {
+            return new KryoSerializer(AnalyzerKryoRegistrator.configure(conf)).newInstance();
+        } else {
+            return new JavaSerializer(conf).newInstance();
+        }
+    }
+
+    private static DeviceTemperature[] values(boolean telemetry) {
+        Random random = new Random(42);
+        long timestamp = System.currentTimeMillis();
+        DeviceTemperature[] values = new DeviceTemperature[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            Map<SensorMetric, Integer> metrics = null;
+            if (telemetry) {
+                metrics = new EnumMap<>(SensorMetric.class);
+                metrics.put(SensorMetric.HUMIDITY, 30 + random.nextInt(30));
+                metrics.put(SensorMetric.PRESSURE, 990 + random.nextInt(40));
+            }
+            values[i] = new DeviceTemperature("device" + (i % DEVICES), 20 + random.nextInt(10), timestamp + i, metrics);
+        }
+        return values;
+    }
+
+    /**
+     * Report the serialized size of the benchmark values with every serializer
+     *
+     * @param args  not used
+     */
+    public static void main(String[] args) {
+        for (boolean telemetry : new boolean[] { false, true }) {
+            for (String name : new String[] { "java", "kryo" }) {
+                SerializationBenchmark benchmark = new SerializationBenchmark();
+                benchmark.serializer = name;
+                benchmark.telemetry = telemetry;
+                benchmark.setup();
+                System.out.printf("%-5s telemetry=%-5s : %7d bytes for %d values, %6.1f bytes per value%n",
+                        name, telemetry, benchmark.serialized.length, VALUES, (double) benchmark.serialized.length / VALUES);
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.benchmarks;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.mqtt.MqttEndpoint;
+import io.vertx.mqtt.MqttServer;
+import io.vertx.mqtt.MqttTopicSubscription;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonHelper;
+import io.vertx.proton.ProtonSender;
+import io.vertx.proton.ProtonServer;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.Symbol;
+import org.apache.qpid.proton.amqp.messaging.AmqpValue;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.messaging.Section;
+import org.apache.qpid.proton.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process AMQP 1.0 and MQTT broker, standing in for the messaging
+ * service in benchmarks and load tests.
+ *
+ * Messages are routed by address (the link target or the message "to" for
+ * the anonymous relay on AMQP, the topic on MQTT) : every MQTT subscriber on
+ * the address gets a copy, while the AMQP consumers attached to it compete
+ * for the messages in a round robin fashion. When there are no subscribers at
+ * all, or the AMQP consumers have no credit, messages are queued up to a max
+ * depth, then the oldest ones are dropped.
+ *
+ * All the connections are handled on the same Vert.x context, so the routing
+ * state is never shared across threads.
+ */
+public class StandInBroker {
+
+    private static final Logger log = LoggerFactory.getLogger(StandInBroker.class);
+
+    private static final long LISTEN_TIMEOUT = 10000;
+    private static final Symbol ANONYMOUS_RELAY = Symbol.valueOf("ANONYMOUS-RELAY");
+
+    private final Vertx vertx;
+    private final int maxQueueDepth;
+    private Context context;
+    private ProtonServer amqpServer;
+    private MqttServer mqttServer;
+
+    // routes by address, accessed only on the broker context
+    private final Map<String, Route> routes = new HashMap<>();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance used for the servers
+     * @param maxQueueDepth max number of messages queued on an address without subscribers or credits
+     */
+    public StandInBroker(Vertx vertx, int maxQueueDepth) {
+        this.vertx = vertx;
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance used for the servers
+     */
+    public StandInBroker(Vertx vertx) {
+        this(vertx, 100000);
+    }
+
+    /**
+     * Start the AMQP and MQTT servers on the provided ports, waiting for both to listen
+     *
+     * @param amqpPort  AMQP port (0 for an ephemeral one)
+     * @param mqttPort  MQTT port (0 for an ephemeral one)
+     * @throws Exception    if one of the servers can't start listening
+     */
+    public void start(int amqpPort, int mqttPort) throws Exception {
+
+        CompletableFuture<Void> amqpListening = new CompletableFuture<>();
+        CompletableFuture<Void> mqttListening = new CompletableFuture<>();
+
+        // servers started on the broker context get all their connections handled on it
+        this.context = this.vertx.getOrCreateContext();
+        this.context.runOnContext(v -> {
+
+            this.amqpServer = ProtonServer.create(this.vertx)
+                    .connectHandler(this::amqpConnected)
+                    .listen(amqpPort, done -> {
+                        if (done.succeeded()) {
+                            amqpListening.complete(null);
+                        } else {
+                            amqpListening.completeExceptionally(done.cause());
+                        }
+                    });
+
+            this.mqttServer = MqttServer.create(this.vertx)
+                    .endpointHandler(this::mqttConnected)
+                    .listen(mqttPort, done -> {
+                        if (done.succeeded()) {
+                            mqttListening.complete(null);
+                        } else {
+                            mqttListening.completeExceptionally(done.cause());
+                        }
+                    });
+        });
+
+        CompletableFuture.allOf(amqpListening, mqttListening).get(LISTEN_TIMEOUT, TimeUnit.MILLISECONDS);
+        log.info("Stand-in broker listening on AMQP port {} and MQTT port {}", this.amqpPort(), this.mqttPort());
+    }
+
+    /**
+     * Start the AMQP and MQTT servers on ephemeral ports, waiting for both to listen
+     *
+     * @throws Exception    if one of the servers can't start listening
+     */
+    public void start() throws Exception {
+        this.start(0, 0);
+    }
+
+    private void amqpConnected(ProtonConnection connection) {
+
+        connection.openHandler(c -> {
+            connection.setOfferedCapabilities(new Symbol[] { ANONYMOUS_RELAY });
+            connection.open();
+        });
+        connection.closeHandler(c -> {
+            this.amqpDisconnected(connection);
+            connection.close();
+        });
+        connection.disconnectHandler(c -> {
+            this.amqpDisconnected(connection);
+            connection.disconnect();
+        });
+        connection.sessionOpenHandler(session -> session.open());
+
+        connection.receiverOpenHandler(receiver -> {
+            String target = receiver.getRemoteTarget() != null ? receiver.getRemoteTarget().getAddress() : null;
+            receiver.setTarget(receiver.getRemoteTarget());
+            receiver.handler((delivery, message) -> {
+                String address = message.getAddress() != null ? message.getAddress() : target;
+                if (address != null) {
+                    this.route(address, message);
+                } else {
+                    log.warn("Message without address on an anonymous link, dropped");
+                    this.dropped.incrementAndGet();
+                }
+            });
+            receiver.open();
+        });
+
+        connection.senderOpenHandler(sender -> {
+            String source = sender.getRemoteSource() != null ? sender.getRemoteSource().getAddress() : null;
+            if (source == null) {
+                sender.setCondition(ProtonHelper.condition("amqp:invalid-field", "source address required"));
+                sender.close();
+                return;
+            }
+            sender.setSource(sender.getRemoteSource());
+            sender.closeHandler(l -> {
+                this.routes.get(source).consumers.remove(sender);
+                sender.close();
+            });
+            sender.detachHandler(l -> {
+                this.routes.get(source).consumers.remove(sender);
+                sender.detach();
+            });
+            sender.open();
+
+            Route route = this.route(source);
+            route.consumers.add(sender);
+            sender.sendQueueDrainHandler(s -> this.drain(route));
+            this.drain(route);
+        });
+    }
+
+    private void amqpDisconnected(ProtonConnection connection) {
+        for (Route route : this.routes.values()) {
+            route.consumers.removeIf(sender -> sender.getSession().getConnection() == connection);
+        }
+    }
+
+    private void mqttConnected(MqttEndpoint endpoint) {
+
+        endpoint.publishHandler(message -> {
+
+            Message amqpMessage = ProtonHelper.message();
+            amqpMessage.setAddress(message.topicName());
+            amqpMessage.setBody(new Data(new Binary(message.payload().getBytes())));
+            this.route(message.topicName(), amqpMessage);
+
+            if (message.qosLevel() == MqttQoS.AT_LEAST_ONCE) {
+                endpoint.publishAcknowledge(message.messageId());
+            } else if (message.qosLevel() == MqttQoS.EXACTLY_ONCE) {
+                endpoint.publishReceived(message.messageId());
+            }
+        });
+        endpoint.publishReleaseHandler(endpoint::publishComplete);
+
+        endpoint.subscribeHandler(subscribe -> {
+            List<MqttQoS> granted = new ArrayList<>();
+            for (MqttTopicSubscription subscription : subscribe.topicSubscriptions()) {
+                // only exact topic names, no wildcards
+                MqttQoS qos = subscription.qualityOfService() == MqttQoS.AT_MOST_ONCE ? MqttQoS.AT_MOST_ONCE : MqttQoS.AT_LEAST_ONCE;
+                Route route = this.route(subscription.topicName());
+                route.subscribers.put(endpoint, qos);
+                granted.add(qos);
+                this.drain(route);
+            }
+            endpoint.subscribeAcknowledge(subscribe.messageId(), granted);
+        });
+        endpoint.unsubscribeHandler(unsubscribe -> {
+            for (String topic : unsubscribe.topics()) {
+                Route route = this.routes.get(topic);
+                if (route != null) {
+                    route.subscribers.remove(endpoint);
+                }
+            }
+            endpoint.unsubscribeAcknowledge(unsubscribe.messageId());
+        });
+
+        endpoint.disconnectHandler(v -> this.mqttDisconnected(endpoint));
+        endpoint.closeHandler(v -> this.mqttDisconnected(endpoint));
+
+        endpoint.accept(false);
+    }
+
+    private void mqttDisconnected(MqttEndpoint endpoint) {
+        for (Route route : this.routes.values()) {
+            route.subscribers.remove(endpoint);
+        }
+    }
+
+    private Route route(String address) {
+        return this.routes.computeIfAbsent(address, Route::new);
+    }
+
+    private void route(String address, Message message) {
+
+        this.received.incrementAndGet();
+        Route route = this.route(address);
+
+        if (!route.subscribers.isEmpty()) {
+            Buffer payload = Buffer.buffer(payload(message));
+            route.subscribers.forEach((endpoint, qos) -> {
+                endpoint.publish(address, payload, qos, false, false);
+                this.delivered.incrementAndGet();
+            });
+        }
+
+        if (!route.consumers.isEmpty() || route.subscribers.isEmpty()) {
+            if (!route.queue.isEmpty() || !this.deliver(route, message)) {
+                this.enqueue(route, message);
+            }
+        }
+    }
+
+    private boolean deliver(Route route, Message message) {
+
+        int size = route.consumers.size();
+        for (int i = 0; i < size; i++) {
+            ProtonSender consumer = route.consumers.get((route.next + i) % size);
+            if (!consumer.sendQueueFull()) {
+                route.next = (route.next + i + 1) % size;
+                consumer.send(message);
+                this.delivered.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void enqueue(Route route, Message message) {
+        if (route.queue.size() >= this.maxQueueDepth) {
+            route.queue.pollFirst();
+            this.dropped.incrementAndGet();
+        }
+        route.queue.addLast(message);
+    }
+
+    private void drain(Route route) {
+
+        if (route.consumers.isEmpty()) {
+            // queued only because nobody was subscribed, the new MQTT subscribers get them
+            while (!route.subscribers.isEmpty() && !route.queue.isEmpty()) {
+                Message message = route.queue.pollFirst();
+                Buffer payload = Buffer.buffer(payload(message));
+                route.subscribers.forEach((endpoint, qos) -> {
+                    endpoint.publish(route.address, payload, qos, false, false);
+                    this.delivered.incrementAndGet();
+                });
+            }
+        } else {
+            while (!route.queue.isEmpty() && this.deliver(route, route.queue.peekFirst())) {
+                route.queue.pollFirst();
+            }
+        }
+    }
+
+    private static byte[] payload(Message message) {
+
+        Section body = message.getBody();
+        if (body instanceof Data) {
+            Binary binary = ((Data) body).getValue();
+            byte[] data = new byte[binary.getLength()];
+            System.arraycopy(binary.getArray(), binary.getArrayOffset(), data, 0, binary.getLength());
+            return data;
+        } else if (body instanceof AmqpValue && ((AmqpValue) body).getValue() instanceof String) {
+            return ((String) ((AmqpValue) body).getValue()).getBytes(StandardCharsets.UTF_8);
+        } else {
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Stop the AMQP and MQTT servers
+     */
+    public void stop() {
+        if (this.amqpServer != null) {
+            this.amqpServer.close();
+        }
+        if (this.mqttServer != null) {
+            this.mqttServer.close();
+        }
+    }
+
+    /**
+     * @return  port the AMQP server is listening on
+     */
+    public int amqpPort() {
+        return this.amqpServer.actualPort();
+    }
+
+    /**
+     * @return  port the MQTT server is listening on
+     */
+    public int mqttPort() {
+        return this.mqttServer.actualPort();
+    }
+
+    /**
+     * @return  number of messages received so far on both servers
+     */
+    public long received() {
+        return this.received.get();
+    }
+
+    /**
+     * @return  number of messages delivered so far to consumers and subscribers
+     */
+    public long delivered() {
+        return this.delivered.get();
+    }
+
+    /**
+     * @return  number of messages dropped so far because of full queues or missing addresses
+     */
+    public long dropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Consumers, subscribers and queued messages for an address
+     */
+    private static class Route {
+
+        private final String address;
+        private final List<ProtonSender> consumers = new ArrayList<>();
+        private final Map<MqttEndpoint, MqttQoS> subscribers = new HashMap<>();
+        private final Deque<Message> queue = new ArrayDeque<>();
+        private int next;
+
+        private Route(String address) {
+            this.address = address;
+        }
+    }
+}
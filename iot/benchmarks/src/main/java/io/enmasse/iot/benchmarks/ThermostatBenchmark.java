@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.benchmarks;
+
+import io.enmasse.iot.controller.thermostat.ControlPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Thermostat control decision for every max temperature
+ * notification, over a population of devices with random temperatures
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ThermostatBenchmark {
+
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({"1000", "100000"})
+    public int devices;
+
+    @Param({"0", "1"})
+    public int hysteresis;
+
+    private ControlPolicy policy;
+    private String[] deviceIds;
+    private int[] temperatures;
+    private int index;
+    private long now;
+
+    @Setup
+    public void setup() {
+
+        this.policy = new ControlPolicy(15, 25, this.hysteresis, 60000, 600000);
+
+        this.deviceIds = new String[this.devices];
+        for (int i = 0; i < this.devices; i++) {
+            this.deviceIds[i] = "device-" + i;
+        }
+
+        Random random = new Random(42);
+        this.temperatures = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            this.temperatures[i] = 10 + random.nextInt(20);
+        }
+    }
+
+    @Benchmark
+    public byte decide() {
+        int i = this.index++;
+        this.now += 10;
+        return this.policy.decide(this.deviceIds[i % this.devices], this.temperatures[i & (SAMPLES - 1)], this.now);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.benchmarks;
+
+import io.enmasse.iot.Aggregate;
+import io.enmasse.iot.SlidingWindow;
+import io.enmasse.iot.WindowFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the analyzer windowing functions for a single device : the plain
+ * max reduce used for tumbling windows, the two-stack sliding window and,
+ * as reference, recomputing the window over all its batches on every slide
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WindowBenchmark {
+
+    private static final long BATCH_INTERVAL = 1000;
+    private static final int VALUES_PER_BATCH = 16;
+
+    /** batches in a window */
+    @Param({"5", "60"})
+    public int panes;
+
+    private int[] values;
+    private long time;
+
+    private SlidingWindow window;
+    private Deque<Aggregate> recomputed;
+
+    @Setup
+    public void setup() {
+
+        Random random = new Random(42);
+        this.values = new int[VALUES_PER_BATCH];
+        for (int i = 0; i < VALUES_PER_BATCH; i++) {
+            this.values[i] = 10 + random.nextInt(20);
+        }
+
+        long windowDuration = this.panes * BATCH_INTERVAL;
+        this.window = new SlidingWindow(windowDuration);
+        this.recomputed = new ArrayDeque<>();
+        for (int i = 0; i < this.panes; i++) {
+            this.slideTwoStacks();
+            this.slideRecompute();
+        }
+    }
+
+    @Benchmark
+    public int reduceMax() {
+        int max = Integer.MIN_VALUE;
+        for (int value : this.values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    @Benchmark
+    public int slideTwoStacks() {
+        this.time += BATCH_INTERVAL;
+        this.window.add(this.time, this.batch());
+        this.window.evict(this.time);
+        return WindowFunction.AVG.apply(this.window.aggregate());
+    }
+
+    @Benchmark
+    public int slideRecompute() {
+        this.recomputed.addLast(this.batch());
+        if (this.recomputed.size() > this.panes) {
+            this.recomputed.pollFirst();
+        }
+        Aggregate aggregate = null;
+        for (Aggregate pane : this.recomputed) {
+            aggregate = aggregate == null ? pane : aggregate.combine(pane);
+        }
+        return WindowFunction.AVG.apply(aggregate);
+    }
+
+    private Aggregate batch() {
+        Aggregate aggregate = Aggregate.of(this.values[0]);
+        for (int i = 1; i < VALUES_PER_BATCH; i++) {
+            aggregate = aggregate.combine(Aggregate.of(this.values[i]));
+        }
+        return aggregate;
+    }
+}
@@ -24,6 +24,7 @@ public class DeviceConfig {
     public static final String HOSTNAME = "service.hostname";
     public static final String PORT = "service.port";
     public static final String TEMPERATURE_ADDRESS = "service.temperature.address";
+    public static final String TEMPERATURE_PARTITIONS = "service.temperature.partitions";
     public static final String CONTROL_PREFIX = "service.control.prefix";
     public static final String CONTROL_ADDRESS = "service.control.address";
 
@@ -31,9 +32,26 @@ public class DeviceConfig {
     public static final String USERNAME = "device.username";
     public static final String PASSWORD = "device.password";
     public static final String UPDATE_INTERVAL = "device.update.interval";
+    public static final String UPDATE_INTERVAL_MAX = "device.update.interval.max";
+    public static final String UPDATE_DEADBAND = "device.update.deadband";
+    public static final String UPDATE_HEARTBEAT = "device.update.heartbeat";
+    public static final String BATCH_SIZE = "device.batch.size";
+    public static final String BATCH_TIMEOUT = "device.batch.timeout";
+    public static final String PAYLOAD_FORMAT = "device.payload.format";
+    public static final String SENSORS = "device.sensors";
     public static final String TRANSPORT_CLASS = "device.transport.class";
     public static final String TRANSPORT_SSL_SERVER_CERT = "device.transport.ssl.servercert";
+    public static final String METRICS_PORT = "device.metrics.port";
+    public static final String LATENCY_LOG = "device.latency.log";
+
+    public static final String FLEET_DEVICES = "fleet.devices";
+    public static final String FLEET_CONNECTIONS = "fleet.connections";
+    public static final String FLEET_DEVICE_ID_PREFIX = "fleet.device.id.prefix";
 
     public static final String DHT22_TEMPERATURE_MIN = "device.dht22.temperature.min";
     public static final String DHT22_TEMPERATURE_MAX = "device.dht22.temperature.max";
+    public static final String DHT22_HUMIDITY_MIN = "device.dht22.humidity.min";
+    public static final String DHT22_HUMIDITY_MAX = "device.dht22.humidity.max";
+    public static final String BMP180_PRESSURE_MIN = "device.bmp180.pressure.min";
+    public static final String BMP180_PRESSURE_MAX = "device.bmp180.pressure.max";
 }
@@ -17,16 +17,28 @@
 package io.enmasse.iot.device.impl;
 
 import io.enmasse.iot.actuator.impl.Valve;
+import io.enmasse.iot.common.BinaryCodec;
+import io.enmasse.iot.common.DevicePartitions;
+import io.enmasse.iot.common.LatencyTracker;
+import io.enmasse.iot.common.MetricsServer;
+import io.enmasse.iot.common.PayloadFormat;
+import io.enmasse.iot.common.SensorMetric;
 import io.enmasse.iot.device.Device;
 import io.enmasse.iot.device.DeviceConfig;
+import io.enmasse.iot.sensor.SensorRegistry;
+import io.enmasse.iot.sensor.impl.BMP180;
 import io.enmasse.iot.sensor.impl.DHT22;
 import io.enmasse.iot.transport.AmqpClient;
 import io.enmasse.iot.transport.Client;
-import io.enmasse.iot.transport.MqttClient;
+import io.enmasse.iot.transport.ClientConfig;
+import io.enmasse.iot.transport.MessageDelivery;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +47,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -42,54 +58,142 @@ import java.util.Properties;
  */
 public class HeatingDevice implements Device {
 
-    protected final Logger log = LoggerFactory.getLogger(HeatingDevice.class);
+    protected static final Logger log = LoggerFactory.getLogger(HeatingDevice.class);
+
+    private static final Counter temperaturesSent = Metrics.counter("iot.device.temperatures.sent");
+    private static final Counter temperaturesSuppressed = Metrics.counter("iot.device.temperatures.suppressed");
+    private static final Counter temperaturesDropped = Metrics.counter("iot.device.temperatures.dropped");
+    private static final Counter heartbeatsSent = Metrics.counter("iot.device.heartbeats.sent");
+    private static final Counter valveOpened = Metrics.counter("iot.device.commands", "operation", "open");
+    private static final Counter valveClosed = Metrics.counter("iot.device.commands", "operation", "close");
+    private static final Counter decodeErrors = Metrics.counter("iot.device.decode.errors");
+    // from the thermostat sending the command, and from the sensor reading, to the valve actuation
+    private static final LatencyTracker hopLatency = LatencyTracker.of("device.hop");
+    private static final LatencyTracker totalLatency = LatencyTracker.of("device.total");
 
     private DHT22 dht22;
+    private BMP180 bmp180;
+    private SensorRegistry sensors;
+    private List<SensorMetric> metrics;
     private Valve valve;
     private Client client;
+    private PayloadFormat payloadFormat;
+
+    // report-by-exception state, accessed only on the device context
+    private long minInterval;
+    private long maxInterval;
+    private int deadband;
+    private long heartbeat;
+    private long interval;
+    private Integer lastSentTemperature;
+    private long lastSentTime;
+
+    // readings waiting for being sent together in the same message, accessed only on the device context
+    private int batchSize;
+    private long batchTimeout;
+    private final List<Map<SensorMetric, Integer>> batchSamples = new ArrayList<>();
+    private final List<Long> batchTimestamps = new ArrayList<>();
+    private long batchTimer = -1;
+    // the client send queue was full, readings are held back until it's drained
+    private boolean blocked;
+    private String temperatureAddress;
 
     private Properties config;
 
     private Vertx vertx;
 
     public HeatingDevice() {
+        this(Vertx.vertx(), null);
+    }
 
-        this.vertx = Vertx.vertx();
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance used by the device
+     * @param client    client to use for sending and receiving, null for creating one on init
+     */
+    public HeatingDevice(Vertx vertx, Client client) {
+
+        this.vertx = vertx;
+        this.client = client;
 
         this.dht22 = new DHT22();
+        this.bmp180 = new BMP180();
         this.valve = new Valve();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void init(Properties config) {
 
         this.config = config;
-        log.info("Init with config {}", config);
+        log.debug("Init with config {}", config);
 
         // initializing sensors and actuators
         Properties configDht22 = new Properties();
         configDht22.setProperty("min", this.config.getProperty(DeviceConfig.DHT22_TEMPERATURE_MIN));
         configDht22.setProperty("max", this.config.getProperty(DeviceConfig.DHT22_TEMPERATURE_MAX));
+        configDht22.setProperty("humidity.min", this.config.getProperty(DeviceConfig.DHT22_HUMIDITY_MIN, "30"));
+        configDht22.setProperty("humidity.max", this.config.getProperty(DeviceConfig.DHT22_HUMIDITY_MAX, "60"));
         this.dht22.init(configDht22);
+        Properties configBmp180 = new Properties();
+        configBmp180.setProperty("min", this.config.getProperty(DeviceConfig.BMP180_PRESSURE_MIN, "990"));
+        configBmp180.setProperty("max", this.config.getProperty(DeviceConfig.BMP180_PRESSURE_MAX, "1030"));
+        this.bmp180.init(configBmp180);
         this.valve.init(null);
 
+        // all the enabled sensors are sampled together and sent in the same message,
+        // the temperature always being one of them for driving the valve
+        List<SensorMetric> enabled = new ArrayList<>();
+        enabled.add(SensorMetric.TEMPERATURE);
+        for (String name : this.config.getProperty(DeviceConfig.SENSORS, "temperature").split(",")) {
+            SensorMetric metric = SensorMetric.fromName(name);
+            if (!enabled.contains(metric)) {
+                enabled.add(metric);
+            }
+        }
+        this.sensors = new SensorRegistry(enabled);
+        this.sensors.register(this.dht22);
+        this.sensors.register(this.bmp180);
+        this.metrics = this.sensors.metrics();
+
+        // getting the payload format, advertised through the content type where the transport supports it
+        this.payloadFormat = PayloadFormat.fromConfig(this.config.getProperty(DeviceConfig.PAYLOAD_FORMAT));
+        this.config.setProperty(ClientConfig.CONTENT_TYPE, this.payloadFormat.contentType());
+
+        if (this.client == null) {
+            this.client = createClient(this.config, this.vertx);
+        }
+    }
+
+    /**
+     * Create and initialize the transport client from the device configuration
+     *
+     * @param config    device configuration
+     * @param vertx Vert.x instance used by the client
+     * @return  transport client
+     */
+    @SuppressWarnings("unchecked")
+    public static Client createClient(Properties config, Vertx vertx) {
+
         // getting hostname and port for client connection
-        String hostname = this.config.getProperty(DeviceConfig.HOSTNAME);
-        int port = Integer.valueOf(this.config.getProperty(DeviceConfig.PORT));
-        String serverCert = this.config.getProperty(DeviceConfig.TRANSPORT_SSL_SERVER_CERT);
+        String hostname = config.getProperty(DeviceConfig.HOSTNAME);
+        int port = Integer.valueOf(config.getProperty(DeviceConfig.PORT));
+        String serverCert = config.getProperty(DeviceConfig.TRANSPORT_SSL_SERVER_CERT);
 
+        Client client;
         try {
             // getting and creating the transport class to use
-            Class transportClass = Class.forName(this.config.getProperty(DeviceConfig.TRANSPORT_CLASS));
+            Class transportClass = Class.forName(config.getProperty(DeviceConfig.TRANSPORT_CLASS));
             Constructor constructor = transportClass.getConstructor(String.class, int.class, String.class, Vertx.class);
-            this.client = (Client) constructor.newInstance(hostname, port, serverCert, this.vertx);
+            client = (Client) constructor.newInstance(hostname, port, serverCert, vertx);
             log.info("Using {} as transport", transportClass);
         } catch (Exception e) {
             log.error("Transport class instantiation error ...", e);
-            this.client = new AmqpClient(hostname, port, serverCert, this.vertx);
+            client = new AmqpClient(hostname, port, serverCert, vertx);
             log.info("Using default {} as transport", AmqpClient.class);
         }
+        client.init(config);
+        return client;
     }
 
     private void run() {
@@ -116,57 +220,237 @@ public class HeatingDevice implements Device {
             log.info("Connected to the service");
 
             Client client = done.result();
+            client.receivedHandler(this::handleMessage);
+            client.drainHandler(v -> this.drained());
 
-            client.receivedHandler(messageDelivery -> {
-
-                try {
-                    JsonObject json = new JsonObject(Buffer.buffer(messageDelivery.message()));
-
-                    log.info("Received message on {} with payload {}",
-                            messageDelivery.address(), json);
-
-                    String deviceId = json.getString("device-id");
-                    if (!deviceId.equals(this.config.getProperty(DeviceConfig.DEVICE_ID))) {
-                        log.error("Received control message for some other device with id {}", deviceId);
-                    } else {
-                        String operation = json.getString("operation");
-                        if ("open".equals(json)) {
-                            valve.open();
-                        } else if ("close".equals(operation)) {
-                            valve.close();
-                        }
-                    }
-                } catch (DecodeException e) {
-                    log.error("Error decoding message, discarded !", e);
-                }
-            });
+            this.start(0);
+
+        } else {
 
-            String controlAddress = this.config.getProperty(DeviceConfig.CONTROL_ADDRESS);
-            log.info("Registering to receive on {}", controlAddress);
-            client.receive(controlAddress);
+            log.error("Error connecting to the service", done.cause());
+        }
+
+    }
+
+    /**
+     * Start receiving control messages and sending temperature values through the connected client.
+     * It has to be called on the client connection context.
+     *
+     * @param initialDelay  delay (ms) before the first temperature value is sent
+     */
+    public void start(long initialDelay) {
+
+        String controlAddress = this.config.getProperty(DeviceConfig.CONTROL_ADDRESS);
+        log.info("Registering to receive on {}", controlAddress);
+        this.client.receive(controlAddress);
+
+        // the sampling interval grows up to the max one while the temperature doesn't move out of the deadband
+        this.minInterval = Long.valueOf(this.config.getProperty(DeviceConfig.UPDATE_INTERVAL));
+        this.maxInterval = Math.max(this.minInterval,
+                Long.valueOf(this.config.getProperty(DeviceConfig.UPDATE_INTERVAL_MAX, String.valueOf(this.minInterval))));
+        this.deadband = Integer.valueOf(this.config.getProperty(DeviceConfig.UPDATE_DEADBAND, "-1"));
+        this.heartbeat = Long.valueOf(this.config.getProperty(DeviceConfig.UPDATE_HEARTBEAT, "0"));
+        this.interval = this.minInterval;
+
+        this.batchSize = Integer.valueOf(this.config.getProperty(DeviceConfig.BATCH_SIZE, "1"));
+        this.batchTimeout = Long.valueOf(this.config.getProperty(DeviceConfig.BATCH_TIMEOUT, "0"));
+
+        // with partitioned temperature addresses, a device always sends through the same one
+        String deviceId = this.config.getProperty(DeviceConfig.DEVICE_ID);
+        int partitions = Integer.parseInt(this.config.getProperty(DeviceConfig.TEMPERATURE_PARTITIONS, "1"));
+        this.temperatureAddress = DevicePartitions.address(this.config.getProperty(DeviceConfig.TEMPERATURE_ADDRESS),
+                DevicePartitions.partition(deviceId, partitions), partitions);
+
+        this.vertx.setTimer(initialDelay > 0 ? initialDelay : this.interval, t -> this.sample());
+    }
+
+    private void sample() {
+
+        Map<SensorMetric, Integer> values = this.sensors.read();
+        int temperature = values.get(SensorMetric.TEMPERATURE);
+        long now = System.currentTimeMillis();
 
-            int updateInterval = Integer.valueOf(this.config.getProperty(DeviceConfig.UPDATE_INTERVAL));
-            String temperatureAddress = this.config.getProperty(DeviceConfig.TEMPERATURE_ADDRESS);
+        // without a deadband every reading is sent, otherwise only the ones moving out of it and the heartbeats
+        boolean changed = this.lastSentTemperature == null || Math.abs(temperature - this.lastSentTemperature) > this.deadband;
+        if (changed || (this.heartbeat > 0 && now - this.lastSentTime >= this.heartbeat)) {
 
-            this.vertx.setPeriodic(updateInterval, t -> {
+            if (!changed) {
+                heartbeatsSent.increment();
+            }
+            this.report(values, now);
+            this.lastSentTemperature = temperature;
+            this.lastSentTime = now;
 
-                int temperature = this.dht22.getTemperature();
+        } else {
+
+            log.debug("Suppressed temperature value = {}, last sent {}", temperature, this.lastSentTemperature);
+            temperaturesSuppressed.increment();
+        }
+
+        this.interval = changed ? this.minInterval : Math.min(this.interval * 2, this.maxInterval);
+        long delay = this.interval;
+        if (this.heartbeat > 0) {
+            // not sampling later than the next heartbeat is due
+            delay = Math.max(1, Math.min(delay, this.lastSentTime + this.heartbeat - now));
+        }
+        this.vertx.setTimer(delay, t -> this.sample());
+    }
 
-                JsonObject json = new JsonObject();
-                json.put("device-id", this.config.getProperty(DeviceConfig.DEVICE_ID));
-                json.put("temperature", temperature);
+    private void report(Map<SensorMetric, Integer> values, long timestamp) {
+
+        if (this.batchSize <= 1 && this.batchSamples.isEmpty() && !this.client.sendQueueFull(this.temperatureAddress)) {
+            this.sendSamples(Collections.singletonList(values), Collections.singletonList(timestamp));
+            return;
+        }
 
-                log.info("Sending temperature value = {} ...", temperature);
-                client.send(temperatureAddress, json.toString().getBytes(), v -> {
-                    log.info("... sent {}", v);
-                });
+        // the batch is sent when full or when its oldest reading has waited for the batch timeout
+        this.batchSamples.add(values);
+        this.batchTimestamps.add(timestamp);
+        if (this.blocked) {
+            // only the latest readings are held back while the send queue is full
+            if (this.batchSamples.size() > Math.max(this.batchSize, 1)) {
+                this.batchSamples.remove(0);
+                this.batchTimestamps.remove(0);
+                temperaturesDropped.increment();
+            }
+        } else if (this.batchSamples.size() >= this.batchSize) {
+            this.flush();
+        } else if (this.batchTimer == -1 && this.batchTimeout > 0) {
+            this.batchTimer = this.vertx.setTimer(this.batchTimeout, t -> {
+                this.batchTimer = -1;
+                this.flush();
             });
+        }
+    }
+
+    private void flush() {
+
+        if (this.batchTimer != -1) {
+            this.vertx.cancelTimer(this.batchTimer);
+            this.batchTimer = -1;
+        }
+        if (this.batchSamples.isEmpty()) {
+            return;
+        }
+        if (this.client.sendQueueFull(this.temperatureAddress)) {
+            log.debug("Send queue full, holding back {} readings", this.batchSamples.size());
+            this.blocked = true;
+            return;
+        }
+        this.sendSamples(new ArrayList<>(this.batchSamples), new ArrayList<>(this.batchTimestamps));
+        this.batchSamples.clear();
+        this.batchTimestamps.clear();
+    }
 
+    /**
+     * Send the readings held back while the client send queue was full.
+     * It has to be called on the client connection context, from the client drain handler.
+     */
+    public void drained() {
+        if (this.blocked) {
+            this.blocked = false;
+            this.flush();
+        }
+    }
+
+    private void sendSamples(List<Map<SensorMetric, Integer>> samples, List<Long> timestamps) {
+
+        String deviceId = this.config.getProperty(DeviceConfig.DEVICE_ID);
+
+        // a single reading keeps the plain payload, more readings go in a series frame (or array);
+        // with more sensors, the telemetry frame (or JSON object) carries all their values
+        byte[] payload;
+        if (this.payloadFormat == PayloadFormat.BINARY) {
+            if (this.metrics.size() > 1) {
+                payload = BinaryCodec.encodeTelemetry(deviceId, this.metrics, samples, timestamps);
+            } else if (samples.size() == 1) {
+                payload = BinaryCodec.encodeTemperature(deviceId, samples.get(0).get(SensorMetric.TEMPERATURE), timestamps.get(0));
+            } else {
+                List<Integer> temperatures = new ArrayList<>(samples.size());
+                for (Map<SensorMetric, Integer> sample : samples) {
+                    temperatures.add(sample.get(SensorMetric.TEMPERATURE));
+                }
+                payload = BinaryCodec.encodeTemperatureSeries(deviceId, temperatures, timestamps);
+            }
+        } else if (samples.size() == 1) {
+            payload = sampleJson(deviceId, samples.get(0), timestamps.get(0)).toString().getBytes();
         } else {
+            JsonArray json = new JsonArray();
+            for (int i = 0; i < samples.size(); i++) {
+                json.add(sampleJson(deviceId, samples.get(i), timestamps.get(i)));
+            }
+            payload = json.toString().getBytes();
+        }
 
-            log.error("Error connecting to the service", done.cause());
+        log.debug("Sending sensors values = {} ...", samples);
+        this.client.send(this.temperatureAddress, payload, v -> {
+            if (v == null) {
+                temperaturesDropped.increment(samples.size());
+                log.debug("... dropped");
+                return;
+            }
+            temperaturesSent.increment(samples.size());
+            log.debug("... sent {}", v);
+        });
+    }
+
+    private static JsonObject sampleJson(String deviceId, Map<SensorMetric, Integer> values, long timestamp) {
+        JsonObject json = new JsonObject();
+        json.put("device-id", deviceId);
+        for (Map.Entry<SensorMetric, Integer> value : values.entrySet()) {
+            json.put(value.getKey().jsonName(), value.getValue());
         }
+        json.put("timestamp", timestamp);
+        return json;
+    }
+
+    /**
+     * Handle a message received on the control address
+     *
+     * @param messageDelivery   received message
+     */
+    public void handleMessage(MessageDelivery messageDelivery) {
+
+        byte[] message = messageDelivery.message();
+        try {
+            if (PayloadFormat.of(message) == PayloadFormat.BINARY) {
+
+                log.debug("Received message on {} with binary payload", messageDelivery.address());
+
+                long timestamp = BinaryCodec.timestamp(message, 0, message.length);
+                BinaryCodec.decodeCommand(message, 0, message.length,
+                        (deviceId, operation, max) -> this.handleCommand(deviceId, operation, timestamp, messageDelivery.creationTime()));
+            } else {
+
+                JsonObject json = new JsonObject(Buffer.buffer(message));
+
+                log.debug("Received message on {} with payload {}",
+                        messageDelivery.address(), json);
 
+                this.handleCommand(json.getString("device-id"), json.getString("operation"),
+                        json.getLong("timestamp", 0L), messageDelivery.creationTime());
+            }
+        } catch (DecodeException | IllegalArgumentException e) {
+            log.error("Error decoding message, discarded !", e);
+            decodeErrors.increment();
+        }
+    }
+
+    private void handleCommand(String deviceId, String operation, long timestamp, long sent) {
+
+        if (!deviceId.equals(this.config.getProperty(DeviceConfig.DEVICE_ID))) {
+            log.error("Received control message for some other device with id {}", deviceId);
+        } else {
+            if ("open".equals(operation)) {
+                valve.open();
+                valveOpened.increment();
+            } else if ("close".equals(operation)) {
+                valve.close();
+                valveClosed.increment();
+            }
+            hopLatency.record(sent);
+            totalLatency.record(timestamp);
+        }
     }
 
     public static void main(String[] args) throws IOException {
@@ -189,6 +473,12 @@ public class HeatingDevice implements Device {
 
         heatingDevice.init(config);
 
+        int metricsPort = Integer.parseInt(config.getProperty(DeviceConfig.METRICS_PORT, "0"));
+        if (metricsPort > 0) {
+            MetricsServer.start(heatingDevice.vertx, metricsPort);
+        }
+        LatencyTracker.open(config.getProperty(DeviceConfig.LATENCY_LOG));
+
         heatingDevice.run();
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.device.impl;
+
+import io.enmasse.iot.common.LatencyTracker;
+import io.enmasse.iot.common.MetricsServer;
+import io.enmasse.iot.common.PayloadFormat;
+import io.enmasse.iot.device.DeviceConfig;
+import io.enmasse.iot.transport.Client;
+import io.enmasse.iot.transport.ClientConfig;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Simulator of a fleet of heating devices running on a single Vert.x instance
+ * and multiplexed over a configurable number of connections
+ */
+public class HeatingDeviceFleet {
+
+    private static final Logger log = LoggerFactory.getLogger(HeatingDeviceFleet.class);
+
+    private final Vertx vertx;
+    private final List<Client> clients = new ArrayList<>();
+    // devices handled by each client, by control address
+    private final List<Map<String, HeatingDevice>> devices = new ArrayList<>();
+    private final Random random = new Random();
+
+    private Properties config;
+
+    public HeatingDeviceFleet() {
+        this.vertx = Vertx.vertx();
+    }
+
+    /**
+     * Fleet initialization, creating the clients and the devices
+     *
+     * @param config    properties bag with the devices configuration and the fleet parameters
+     */
+    public void init(Properties config) {
+
+        this.config = config;
+
+        int size = Integer.valueOf(config.getProperty(DeviceConfig.FLEET_DEVICES, "1000"));
+        int connections = Integer.valueOf(config.getProperty(DeviceConfig.FLEET_CONNECTIONS, "10"));
+        String idPrefix = config.getProperty(DeviceConfig.FLEET_DEVICE_ID_PREFIX, "device");
+
+        // clients are shared by the devices, so they advertise the content type for the configured payload format
+        PayloadFormat payloadFormat = PayloadFormat.fromConfig(config.getProperty(DeviceConfig.PAYLOAD_FORMAT));
+        config.setProperty(ClientConfig.CONTENT_TYPE, payloadFormat.contentType());
+
+        for (int i = 0; i < connections; i++) {
+            this.clients.add(HeatingDevice.createClient(config, this.vertx));
+            this.devices.add(new HashMap<>());
+        }
+
+        // devices are assigned to the clients in a round robin fashion
+        for (int i = 0; i < size; i++) {
+
+            Properties deviceConfig = new Properties();
+            deviceConfig.putAll(config);
+            String deviceId = idPrefix + i;
+            String controlAddress = String.format("%s/%s", config.getProperty(DeviceConfig.CONTROL_PREFIX), deviceId);
+            deviceConfig.setProperty(DeviceConfig.DEVICE_ID, deviceId);
+            deviceConfig.setProperty(DeviceConfig.CONTROL_ADDRESS, controlAddress);
+
+            Client client = this.clients.get(i % connections);
+            HeatingDevice device = new HeatingDevice(this.vertx, client);
+            device.init(deviceConfig);
+            this.devices.get(i % connections).put(controlAddress, device);
+        }
+        log.info("Fleet of {} devices over {} connections", size, connections);
+    }
+
+    private void run() {
+
+        String username = this.config.getProperty(DeviceConfig.USERNAME);
+        String password = this.config.getProperty(DeviceConfig.PASSWORD);
+        int updateInterval = Integer.valueOf(this.config.getProperty(DeviceConfig.UPDATE_INTERVAL));
+
+        for (int i = 0; i < this.clients.size(); i++) {
+
+            Client client = this.clients.get(i);
+            Map<String, HeatingDevice> clientDevices = this.devices.get(i);
+
+            client.receivedHandler(messageDelivery -> {
+                HeatingDevice device = clientDevices.get(messageDelivery.address());
+                if (device != null) {
+                    device.handleMessage(messageDelivery);
+                } else {
+                    log.error("Received message on {} for no device", messageDelivery.address());
+                }
+            });
+            // devices sharing the client hold back their readings while its send queue is full
+            client.drainHandler(v -> {
+                for (HeatingDevice device : clientDevices.values()) {
+                    device.drained();
+                }
+            });
+
+            client.connect(username, password, done -> {
+
+                if (done.succeeded()) {
+
+                    log.info("Connected to the service, starting {} devices", clientDevices.size());
+
+                    // devices start with a random delay within the update interval, avoiding bursts all at the same time
+                    for (HeatingDevice device : clientDevices.values()) {
+                        device.start(1 + this.random.nextInt(updateInterval));
+                    }
+
+                } else {
+
+                    log.error("Error connecting to the service", done.cause());
+                }
+            });
+        }
+
+        try {
+            System.in.read();
+            for (Client client : this.clients) {
+                client.disconnect();
+            }
+            this.vertx.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.err.println("Missing config file parameter");
+            System.exit(1);
+        }
+
+        String configFile = args[0];
+
+        HeatingDeviceFleet fleet = new HeatingDeviceFleet();
+
+        InputStream input = new FileInputStream(configFile);
+        Properties config = new Properties();
+        config.load(input);
+
+        fleet.init(config);
+
+        int metricsPort = Integer.parseInt(config.getProperty(DeviceConfig.METRICS_PORT, "0"));
+        if (metricsPort > 0) {
+            MetricsServer.start(fleet.vertx, metricsPort);
+        }
+        LatencyTracker.open(config.getProperty(DeviceConfig.LATENCY_LOG));
+
+        fleet.run();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.sensor;
+
+import io.enmasse.iot.common.SensorMetric;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+/**
+ * Registry of the sensors of a device, polling all of them together for
+ * getting the values of the enabled metrics sampled at the same time
+ */
+public class SensorRegistry {
+
+    private final List<SensorMetric> enabled;
+    private final Map<SensorMetric, IntSupplier> readers = new EnumMap<>(SensorMetric.class);
+
+    /**
+     * Constructor
+     *
+     * @param enabled   metrics to sample, in the order they are sent
+     */
+    public SensorRegistry(List<SensorMetric> enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Register a sensor, which provides the enabled metrics it supports
+     * unless they are already provided by a previously registered one
+     *
+     * @param sensor    sensor to register
+     */
+    public void register(Sensor sensor) {
+        for (SensorMetric metric : this.enabled) {
+            if (this.readers.containsKey(metric)) {
+                continue;
+            }
+            if (metric == SensorMetric.TEMPERATURE && sensor instanceof TemperatureSensor) {
+                this.readers.put(metric, ((TemperatureSensor) sensor)::getTemperature);
+            } else if (metric == SensorMetric.HUMIDITY && sensor instanceof HumiditySensor) {
+                this.readers.put(metric, ((HumiditySensor) sensor)::getHumidity);
+            } else if (metric == SensorMetric.PRESSURE && sensor instanceof PressureSensor) {
+                this.readers.put(metric, ((PressureSensor) sensor)::getPressure);
+            }
+        }
+    }
+
+    /**
+     * @return  enabled metrics provided by the registered sensors, in the order they are sent
+     */
+    public List<SensorMetric> metrics() {
+        List<SensorMetric> metrics = new ArrayList<>(this.readers.size());
+        for (SensorMetric metric : this.enabled) {
+            if (this.readers.containsKey(metric)) {
+                metrics.add(metric);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Read all the registered sensors
+     *
+     * @return  values of the enabled metrics
+     */
+    public Map<SensorMetric, Integer> read() {
+        Map<SensorMetric, Integer> values = new EnumMap<>(SensorMetric.class);
+        for (Map.Entry<SensorMetric, IntSupplier> reader : this.readers.entrySet()) {
+            values.put(reader.getKey(), reader.getValue().getAsInt());
+        }
+        return values;
+    }
+}
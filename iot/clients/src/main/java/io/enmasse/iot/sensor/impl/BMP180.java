@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.sensor.impl;
+
+import io.enmasse.iot.sensor.PressureSensor;
+
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Simulated BMP180 barometric pressure sensor, providing the pressure in hPa
+ * @see <a href="https://learn.adafruit.com/using-the-bmp085-with-raspberry-pi/overview">BMP085/BMP180</a>
+ */
+public class BMP180 implements PressureSensor {
+
+    private int min;
+    private int max;
+    private Random random = new Random();
+
+    @Override
+    public int getPressure() {
+        int pressure = this.min + random.nextInt(this.max - this.min);
+        return pressure;
+    }
+
+    @Override
+    public void init(Properties config) {
+        this.min = Integer.valueOf(config.getProperty("min"));
+        this.max = Integer.valueOf(config.getProperty("max"));
+    }
+}
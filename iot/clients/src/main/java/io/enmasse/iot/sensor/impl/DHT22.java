@@ -30,11 +30,14 @@ public class DHT22 implements TemperatureSensor, HumiditySensor {
 
     private int min;
     private int max;
+    private int humidityMin;
+    private int humidityMax;
     private Random random = new Random();
 
     @Override
     public int getHumidity() {
-        return 0;
+        int humidity = this.humidityMin + random.nextInt(this.humidityMax - this.humidityMin);
+        return humidity;
     }
 
     @Override
@@ -47,5 +50,7 @@ public class DHT22 implements TemperatureSensor, HumiditySensor {
     public void init(Properties config) {
         this.min = Integer.valueOf(config.getProperty("min"));
         this.max = Integer.valueOf(config.getProperty("max"));
+        this.humidityMin = Integer.valueOf(config.getProperty("humidity.min", "30"));
+        this.humidityMax = Integer.valueOf(config.getProperty("humidity.max", "60"));
     }
 }
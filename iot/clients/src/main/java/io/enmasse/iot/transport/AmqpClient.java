@@ -32,10 +32,18 @@ import org.apache.qpid.proton.amqp.Binary;
 import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.apache.qpid.proton.amqp.messaging.AmqpValue;
 import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.messaging.Modified;
+import org.apache.qpid.proton.amqp.messaging.Rejected;
+import org.apache.qpid.proton.amqp.messaging.Released;
 import org.apache.qpid.proton.amqp.messaging.Section;
+import org.apache.qpid.proton.amqp.transport.DeliveryState;
 import org.apache.qpid.proton.message.Message;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -48,14 +56,34 @@ public class AmqpClient extends Client {
     private ProtonConnection connection;
     private Map<String, ProtonSender> senders;
     private Map<String, ProtonReceiver> receivers;
+    private String contentType;
+    // messages sent while the sender link on their address is attaching
+    private Map<String, Deque<PendingMessage>> pending;
+    private int maxPending;
+    private PendingOverflow pendingOverflow;
+    // messages sent and not settled yet by the remote system
+    private int unsettled;
+
+    /**
+     * What to do with a message sent when the pending queue for its address is full
+     */
+    public enum PendingOverflow {
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
 
     public AmqpClient(String hostname, int port, String serverCert, Vertx vertx) {
-        super(hostname, port, serverCert, vertx);
+        super(hostname, port, serverCert, vertx, "amqp");
     }
 
     @Override
     public void init(Properties config) {
 
+        super.init(config);
+        this.contentType = config.getProperty(ClientConfig.CONTENT_TYPE);
+        this.maxPending = Integer.parseInt(config.getProperty(ClientConfig.AMQP_PENDING_MAX, "1000"));
+        this.pendingOverflow = PendingOverflow.valueOf(
+                config.getProperty(ClientConfig.AMQP_PENDING_OVERFLOW, "drop-oldest").toUpperCase().replace('-', '_'));
     }
 
     @Override
@@ -66,6 +94,8 @@ public class AmqpClient extends Client {
     @Override
     public void connect(String username, String password, Handler<AsyncResult<Client>> connectHandler) {
 
+        this.username = username;
+        this.password = password;
         this.client = ProtonClient.create(vertx);
 
         ProtonClientOptions options = new ProtonClientOptions();
@@ -81,9 +111,16 @@ public class AmqpClient extends Client {
             if (done.succeeded()) {
 
                 log.info("Connected to {}:{}", this.hostname, this.port);
+                this.context = Vertx.currentContext();
 
-                this.connection = done.result();
-                this.connection.open();
+                ProtonConnection connection = done.result();
+                connection.closeHandler(c -> {
+                    connection.close();
+                    this.connectionLost();
+                });
+                connection.disconnectHandler(c -> this.connectionLost());
+                connection.open();
+                this.connection = connection;
 
                 if (this.senders != null) {
                     this.senders.clear();
@@ -96,12 +133,27 @@ public class AmqpClient extends Client {
                 } else {
                     this.receivers = new HashMap<>();
                 }
+
+                if (this.pending != null) {
+                    // lost with the previous connection
+                    this.pending.values().forEach(this::dropPending);
+                    this.pending.clear();
+                } else {
+                    this.pending = new HashMap<>();
+                }
+                // never going to be settled
+                this.metrics.inFlight(-this.unsettled);
+                this.unsettled = 0;
+
+                this.connected();
                 connectHandler.handle(Future.succeededFuture(this));
 
             } else {
 
                 log.error("Error connecting to the service", done.cause());
-                connectHandler.handle(Future.failedFuture(done.cause()));
+                if (!this.retryConnect(connectHandler)) {
+                    connectHandler.handle(Future.failedFuture(done.cause()));
+                }
             }
         });
     }
@@ -109,7 +161,12 @@ public class AmqpClient extends Client {
     @Override
     public void disconnect() {
 
-        this.vertx.runOnContext(c -> {
+        this.closing = true;
+        this.runOnContext(c -> {
+            // never connected, maybe still trying
+            if (this.connection == null) {
+                return;
+            }
             for (ProtonSender sender: this.senders.values()) {
                 sender.close();
             }
@@ -127,80 +184,237 @@ public class AmqpClient extends Client {
     @Override
     public void send(String address, byte[] data, Handler<String> sendCompletionHandler) {
 
-        this.vertx.runOnContext(c -> {
-            ProtonSender sender = this.senders.get(address);
-            if (sender == null) {
+        this.runOnContext(c -> {
+            this.sendInternal(address, data, sendCompletionHandler);
+        });
+    }
 
-                sender = this.connection.createSender(address);
-                sender.openHandler(done ->{
+    @Override
+    public void send(String address, List<byte[]> batch, Handler<String> sendCompletionHandler) {
 
-                    if (done.succeeded()) {
-                        this.sendInternal(done.result(), address, data, sendCompletionHandler);
-                    } else {
-                        log.error("Error opening the sender link on {}", address);
-                    }
+        // a single hop on the connection context for the whole batch
+        this.runOnContext(c -> {
+            for (byte[] data : batch) {
+                this.sendInternal(address, data, sendCompletionHandler);
+            }
+        });
+    }
 
-                });
-                sender.open();
-                this.senders.put(address, sender);
+    @Override
+    public boolean sendQueueFull(String address) {
 
-            } else {
+        if (!this.connected) {
+            return this.outageBufferFull();
+        }
+        Deque<PendingMessage> queue = this.pending.get(address);
+        if (queue != null) {
+            return queue.size() >= this.maxPending;
+        }
+        ProtonSender sender = this.senders.get(address);
+        return sender != null && sender.sendQueueFull();
+    }
 
-                this.sendInternal(sender, address, data, sendCompletionHandler);
-            }
-        });
+    private ProtonSender sender(String address) {
+
+        ProtonSender sender = this.senders.get(address);
+        if (sender == null) {
+
+            // messages sent while the link is attaching are queued and sent all together when it's open
+            this.pending.put(address, new ArrayDeque<>());
+            long start = System.nanoTime();
+
+            ProtonSender newSender = this.connection.createSender(address);
+            newSender.openHandler(done -> {
+
+                Deque<PendingMessage> queue = this.pending.remove(address);
+                if (done.succeeded()) {
+                    this.metrics.senderAttached(start);
+                    if (queue != null && !queue.isEmpty()) {
+                        log.debug("Sender link on {} open, sending {} pending messages", address, queue.size());
+                        for (PendingMessage pendingMessage : queue) {
+                            this.sendInternal(newSender, pendingMessage.message, pendingMessage.sendCompletionHandler);
+                        }
+                    }
+                    if (this.drainHandler != null) {
+                        this.drainHandler.handle(null);
+                    }
+                } else {
+                    log.error("Error opening the sender link on {}, {} pending messages dropped",
+                            address, queue != null ? queue.size() : 0, done.cause());
+                    if (queue != null) {
+                        this.dropPending(queue);
+                    }
+                    this.senders.remove(address, newSender);
+                }
+            });
+            newSender.closeHandler(done -> {
+                log.info("Sender link on {} closed", address);
+                Deque<PendingMessage> queue = this.pending.remove(address);
+                if (queue != null) {
+                    this.dropPending(queue);
+                }
+                this.senders.remove(address, newSender);
+                newSender.close();
+            });
+            newSender.sendQueueDrainHandler(s -> {
+                if (this.drainHandler != null) {
+                    this.drainHandler.handle(null);
+                }
+            });
+            newSender.open();
+            this.senders.put(address, newSender);
+            sender = newSender;
+        }
+        return sender;
     }
 
-    private void sendInternal(ProtonSender sender, String address, byte[] data, Handler<String> sendCompletionHandler) {
+    private void sendInternal(String address, byte[] data, Handler<String> sendCompletionHandler) {
+
+        if (this.bufferIfNotConnected(address, data, sendCompletionHandler)) {
+            return;
+        }
 
         Message msg = ProtonHelper.message();
         msg.setBody(new Data(new Binary(data)));
         msg.setAddress(address);
+        msg.setCreationTime(System.currentTimeMillis());
+        if (this.contentType != null) {
+            msg.setContentType(this.contentType);
+        }
 
-        if (sender.isOpen()) {
-
-            sender.send(msg, delivery -> {
+        ProtonSender sender = this.sender(address);
+        Deque<PendingMessage> queue = this.pending.get(address);
+        if (queue != null) {
 
-                if (sendCompletionHandler != null) {
-                    sendCompletionHandler.handle(new String(delivery.getTag()));
+            if (queue.size() >= this.maxPending) {
+                if (this.pendingOverflow == PendingOverflow.DROP_NEWEST) {
+                    log.debug("Pending queue on {} full, message dropped", address);
+                    this.dropPending(new PendingMessage(msg, sendCompletionHandler));
+                    return;
                 }
-            });
+                this.dropPending(queue.pollFirst());
+                log.debug("Pending queue on {} full, oldest message dropped", address);
+            }
+            queue.addLast(new PendingMessage(msg, sendCompletionHandler));
+            this.metrics.pendingQueued();
+
+        } else if (sender.isOpen()) {
+
+            this.sendInternal(sender, msg, sendCompletionHandler);
+
+        } else {
+
+            log.warn("Sender link on {} not open, message discarded", address);
+            this.metrics.discarded();
+            dropped(sendCompletionHandler);
         }
     }
 
+    private void sendInternal(ProtonSender sender, Message msg, Handler<String> sendCompletionHandler) {
+
+        this.metrics.sent();
+        this.unsettled++;
+        this.metrics.inFlight(1);
+        sender.send(msg, delivery -> {
+
+            this.unsettled--;
+            this.metrics.inFlight(-1);
+            this.metrics.disposition(outcome(delivery.getRemoteState()));
+            if (sendCompletionHandler != null) {
+                sendCompletionHandler.handle(new String(delivery.getTag()));
+            }
+        });
+    }
+
+    private void dropPending(Deque<PendingMessage> queue) {
+        for (PendingMessage pendingMessage : queue) {
+            this.dropPending(pendingMessage);
+        }
+    }
+
+    private void dropPending(PendingMessage pendingMessage) {
+        this.metrics.pendingDropped();
+        dropped(pendingMessage.sendCompletionHandler);
+    }
+
+    private static String outcome(DeliveryState state) {
+        if (state instanceof Accepted) {
+            return "accepted";
+        } else if (state instanceof Rejected) {
+            return "rejected";
+        } else if (state instanceof Released) {
+            return "released";
+        } else if (state instanceof Modified) {
+            return "modified";
+        }
+        return "none";
+    }
+
     @Override
     public void receive(String address) {
 
-        this.vertx.runOnContext(c -> {
-            if (!this.receivers.containsKey(address)) {
+        this.runOnContext(c -> {
+            this.subscriptions.add(address);
+            if (this.connected && !this.receivers.containsKey(address)) {
 
                 final ProtonReceiver receiver = this.connection.createReceiver(address);
+                long start = System.nanoTime();
+                receiver.openHandler(done -> {
+                    if (done.succeeded()) {
+                        this.metrics.receiverAttached(start);
+                    } else {
+                        log.error("Error opening the receiver link on {}", address, done.cause());
+                    }
+                });
                 receiver.handler((delivery, message) -> {
                    this.receiverHandler(receiver, delivery, message);
                 });
+                receiver.closeHandler(done -> {
+                    log.info("Receiver link on {} closed", address);
+                    this.receivers.remove(address, receiver);
+                    receiver.close();
+                });
                 receiver.open();
+                this.receivers.put(address, receiver);
             }
         });
     }
 
     private void receiverHandler(ProtonReceiver receiver, ProtonDelivery delivery, Message message) {
 
+        this.metrics.received();
         Section section = message.getBody();
 
         byte[] data = null;
         if (section instanceof AmqpValue) {
             data = ((String) ((AmqpValue)section).getValue()).getBytes();
         } else if (section instanceof Data) {
-            data = ((Data)message.getBody()).getValue().getArray();
+            Binary binary = ((Data)message.getBody()).getValue();
+            data = Arrays.copyOfRange(binary.getArray(), binary.getArrayOffset(), binary.getArrayOffset() + binary.getLength());
         } else {
             log.error("Discarded message : body type not supported");
+            this.metrics.decodeError();
         }
 
         MessageDelivery messageDelivery =
-                new MessageDelivery(receiver.getSource().getAddress(), data);
+                new MessageDelivery(receiver.getSource().getAddress(), data, message.getCreationTime());
 
         delivery.disposition(Accepted.getInstance(), true);
 
         this.receivedHandler.handle(messageDelivery);
     }
+
+    /**
+     * Message waiting for the sender link on its address to attach
+     */
+    private static class PendingMessage {
+
+        private final Message message;
+        private final Handler<String> sendCompletionHandler;
+
+        private PendingMessage(Message message, Handler<String> sendCompletionHandler) {
+            this.message = message;
+            this.sendCompletionHandler = sendCompletionHandler;
+        }
+    }
 }
@@ -16,13 +16,21 @@
 
 package io.enmasse.iot.transport;
 
+import io.enmasse.iot.common.Backoff;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * Base class for different transport protocol clients (AMQP, MQTT, ...)
@@ -35,7 +43,23 @@ public abstract class Client {
     protected final int port;
     protected final String serverCert;
     protected final Vertx vertx;
+    protected final ClientMetrics metrics;
+    // context of the connection, set when connected
+    protected Context context;
     protected Handler<MessageDelivery> receivedHandler;
+    protected Handler<Void> drainHandler;
+
+    protected String username;
+    protected String password;
+    // addresses passed to receive(), subscribed again on reconnection
+    protected final Set<String> subscriptions = new LinkedHashSet<>();
+    protected boolean connected;
+    protected boolean closing;
+    // null when reconnection is disabled
+    private Backoff backoff;
+    // messages sent while not connected, sent on reconnection
+    private final Deque<OutboundMessage> outageBuffer = new ArrayDeque<>();
+    private int outageBufferSize;
 
     /**
      * Constructor
@@ -44,12 +68,14 @@ public abstract class Client {
      * @param port  host port to connect to
      * @param serverCert    path to the Server certificate for authentication
      * @param vertx Vert.x instance used for the client
+     * @param transport transport protocol name, used for tagging the metrics
      */
-    public Client(String hostname, int port, String serverCert, Vertx vertx) {
+    public Client(String hostname, int port, String serverCert, Vertx vertx, String transport) {
         this.hostname = hostname;
         this.port = port;
         this.serverCert = serverCert;
         this.vertx = vertx;
+        this.metrics = ClientMetrics.of(transport);
     }
 
     /**
@@ -57,17 +83,27 @@ public abstract class Client {
      *
      * @param config    properties bag with client configuration parameters
      */
-    public abstract void init(Properties config);
+    public void init(Properties config) {
+
+        if (Boolean.parseBoolean(config.getProperty(ClientConfig.RECONNECT, "true"))) {
+            this.backoff = new Backoff(
+                    Long.parseLong(config.getProperty(ClientConfig.RECONNECT_DELAY_MIN, "1000")),
+                    Long.parseLong(config.getProperty(ClientConfig.RECONNECT_DELAY_MAX, "60000")));
+        }
+        this.outageBufferSize = Integer.parseInt(config.getProperty(ClientConfig.OUTAGE_BUFFER, "0"));
+    }
 
     /**
-     * Connect to the remote system
+     * Connect to the remote system. With reconnection enabled, a failed attempt is retried
+     * with backoff until connected or disconnected, so the handler fails only without it
      *
      * @param connectHandler    handler called when connection is established (or not)
      */
     public abstract void connect(Handler<AsyncResult<Client>> connectHandler);
 
     /**
-     * Connect to the remote system with username/password credentials
+     * Connect to the remote system with username/password credentials. With reconnection enabled,
+     * a failed attempt is retried with backoff until connected or disconnected, so the handler fails only without it
      *
      * @param username  username
      * @param password  password
@@ -85,7 +121,8 @@ public abstract class Client {
      *
      * @param address   address to send the message
      * @param data   data to send
-     * @param sendCompletionHandler handler to call on sent completion providing a message identifier
+     * @param sendCompletionHandler handler to call on sent completion providing a message identifier,
+     *                              or null when the message is dropped without being sent
      */
     public abstract void send(String address, byte[] data, Handler<String> sendCompletionHandler);
 
@@ -99,6 +136,41 @@ public abstract class Client {
         this.send(address, data, null);
     }
 
+    /**
+     * Send a batch of messages to the remote system
+     *
+     * @param address   address to send the messages
+     * @param batch data of the messages to send
+     * @param sendCompletionHandler handler to call on every message sent completion providing its identifier,
+     *                              or null when the message is dropped without being sent
+     */
+    public void send(String address, List<byte[]> batch, Handler<String> sendCompletionHandler) {
+        for (byte[] data : batch) {
+            this.send(address, data, sendCompletionHandler);
+        }
+    }
+
+    /**
+     * Check if the messages sent to an address are queued up locally, waiting
+     * for the remote system, so that the producer should stop sending until
+     * the drain handler is called. It has to be called on the client context
+     *
+     * @param address   address to send the messages
+     * @return  if the send queue is full
+     */
+    public abstract boolean sendQueueFull(String address);
+
+    /**
+     * Set the handler called when a send queue reported as full has room again
+     *
+     * @param handler   handler to call when the producer can send again
+     * @return  current client instance
+     */
+    public Client drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+
     /**
      * Subscribe to receive messages
      *
@@ -106,6 +178,152 @@ public abstract class Client {
      */
     public abstract void receive(String address);
 
+    /**
+     * Run an action on the connection context, right away when already running on it
+     * so that a producer checking the send queue sees the effect of its sends
+     *
+     * @param action    action to run
+     */
+    protected void runOnContext(Handler<Void> action) {
+        if (this.context == null) {
+            this.vertx.runOnContext(action);
+        } else if (Vertx.currentContext() == this.context) {
+            action.handle(null);
+        } else {
+            this.context.runOnContext(action);
+        }
+    }
+
+    /**
+     * To be called by the implementations when the connection is established,
+     * subscribing again to the addresses and sending the messages buffered
+     * while not connected
+     */
+    protected void connected() {
+
+        this.connected = true;
+        if (this.backoff != null) {
+            this.backoff.reset();
+        }
+
+        for (String address : new ArrayList<>(this.subscriptions)) {
+            this.receive(address);
+        }
+
+        if (!this.outageBuffer.isEmpty()) {
+            log.info("Sending {} messages buffered while not connected", this.outageBuffer.size());
+            while (!this.outageBuffer.isEmpty()) {
+                OutboundMessage message = this.outageBuffer.poll();
+                this.send(message.address, message.data, message.sendCompletionHandler);
+            }
+        }
+        if (this.drainHandler != null) {
+            this.drainHandler.handle(null);
+        }
+    }
+
+    /**
+     * To be called by the implementations when the connection is lost,
+     * reconnecting with a randomized exponential backoff if enabled
+     */
+    protected void connectionLost() {
+
+        boolean wasConnected = this.connected;
+        this.connected = false;
+        if (!wasConnected || this.closing) {
+            return;
+        }
+
+        log.warn("Connection to {}:{} lost", this.hostname, this.port);
+        this.metrics.connectionLost();
+        if (this.backoff != null) {
+            this.reconnect(done -> {
+                if (done.succeeded()) {
+                    log.info("Reconnected to {}:{}", this.hostname, this.port);
+                }
+            });
+        }
+    }
+
+    /**
+     * To be called by the implementations when a connection attempt fails,
+     * trying again with a randomized exponential backoff if enabled and not disconnected
+     *
+     * @param connectHandler    handler of the failed attempt, called when the connection is established
+     * @return  if the connection is going to be tried again, otherwise the handler has to be failed
+     */
+    protected boolean retryConnect(Handler<AsyncResult<Client>> connectHandler) {
+
+        if (this.backoff == null || this.closing) {
+            return false;
+        }
+        this.reconnect(connectHandler);
+        return true;
+    }
+
+    private void reconnect(Handler<AsyncResult<Client>> connectHandler) {
+
+        long delay = this.backoff.next();
+        log.info("Reconnecting to {}:{} in {} ms", this.hostname, this.port, delay);
+        this.vertx.setTimer(delay, t -> {
+
+            if (this.closing) {
+                return;
+            }
+            this.metrics.reconnect();
+            // a failed attempt is retried through retryConnect() by the implementations
+            this.connect(this.username, this.password, connectHandler);
+        });
+    }
+
+    /**
+     * To be called by the implementations before sending a message, buffering
+     * it (or dropping it, if the buffer is full or disabled) when not connected
+     *
+     * @param address   address to send the message
+     * @param data  data to send
+     * @param sendCompletionHandler handler to call on sent completion
+     * @return  if the message was buffered or dropped, so it must not be sent
+     */
+    protected boolean bufferIfNotConnected(String address, byte[] data, Handler<String> sendCompletionHandler) {
+
+        if (this.connected) {
+            return false;
+        }
+        if (this.outageBufferSize == 0) {
+            this.metrics.outageDropped();
+            log.debug("Not connected, message to {} dropped", address);
+            dropped(sendCompletionHandler);
+            return true;
+        }
+        if (this.outageBuffer.size() >= this.outageBufferSize) {
+            OutboundMessage oldest = this.outageBuffer.poll();
+            this.metrics.outageDropped();
+            dropped(oldest.sendCompletionHandler);
+        }
+        this.outageBuffer.add(new OutboundMessage(address, data, sendCompletionHandler));
+        return true;
+    }
+
+    /**
+     * To be called by the implementations when a message is dropped without being sent,
+     * completing it with a null message identifier
+     *
+     * @param sendCompletionHandler handler to call on sent completion
+     */
+    protected static void dropped(Handler<String> sendCompletionHandler) {
+        if (sendCompletionHandler != null) {
+            sendCompletionHandler.handle(null);
+        }
+    }
+
+    /**
+     * @return  if the buffer for the messages sent while not connected is full
+     */
+    protected boolean outageBufferFull() {
+        return this.outageBuffer.size() >= this.outageBufferSize;
+    }
+
     /**
      * Set the handler for incoming messages
      *
@@ -117,4 +335,20 @@ public abstract class Client {
         return this;
     }
 
+
+    /**
+     * Message sent while not connected
+     */
+    private static class OutboundMessage {
+
+        private final String address;
+        private final byte[] data;
+        private final Handler<String> sendCompletionHandler;
+
+        private OutboundMessage(String address, byte[] data, Handler<String> sendCompletionHandler) {
+            this.address = address;
+            this.data = data;
+            this.sendCompletionHandler = sendCompletionHandler;
+        }
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.transport;
+
+/**
+ * Configuration properties for a transport client
+ */
+public class ClientConfig {
+
+    public static final String CONTENT_TYPE = "device.transport.content.type";
+    public static final String MAX_IN_FLIGHT = "device.transport.max.inflight";
+    public static final String RECONNECT = "device.transport.reconnect";
+    public static final String RECONNECT_DELAY_MIN = "device.transport.reconnect.delay.min";
+    public static final String RECONNECT_DELAY_MAX = "device.transport.reconnect.delay.max";
+    public static final String OUTAGE_BUFFER = "device.transport.outage.buffer";
+    public static final String MQTT_QOS = "device.transport.mqtt.qos";
+    public static final String AMQP_PENDING_MAX = "device.transport.amqp.pending.max";
+    public static final String AMQP_PENDING_OVERFLOW = "device.transport.amqp.pending.overflow";
+}
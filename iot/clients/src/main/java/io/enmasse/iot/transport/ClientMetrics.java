@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.transport;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of the transport clients, registered on the global registry and
+ * shared by all the clients using the same transport protocol, so that
+ * a fleet of devices doesn't end up with a time series per device
+ */
+public final class ClientMetrics {
+
+    private static final String PREFIX = "iot.transport.";
+    private static final Map<String, ClientMetrics> instances = new ConcurrentHashMap<>();
+
+    private final String transport;
+    private final Counter sent;
+    private final Counter received;
+    private final Map<String, Counter> dispositions = new ConcurrentHashMap<>();
+    private final Counter connectionsLost;
+    private final Counter reconnects;
+    private final Counter decodeErrors;
+    private final Counter pendingQueued;
+    private final Counter pendingDropped;
+    private final Counter outageDropped;
+    private final Counter discarded;
+    private final Counter inFlightFull;
+    // summed up over all the clients of the transport
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Timer senderAttach;
+    private final Timer receiverAttach;
+
+    private ClientMetrics(String transport) {
+        this.transport = transport;
+        this.sent = this.counter("messages.sent", "Messages sent");
+        this.received = this.counter("messages.received", "Messages received");
+        this.connectionsLost = this.counter("connections.lost", "Connections lost");
+        this.reconnects = this.counter("reconnects", "Reconnection attempts");
+        this.decodeErrors = this.counter("decode.errors", "Messages received which couldn't be decoded");
+        this.pendingQueued = this.counter("pending.queued", "Messages queued while the sender link was attaching");
+        this.pendingDropped = this.counter("pending.dropped", "Messages dropped from the pending queues");
+        this.outageDropped = this.counter("outage.dropped", "Messages dropped because sent while not connected");
+        this.discarded = this.counter("messages.discarded", "Messages discarded because their sender link wasn't open");
+        this.inFlightFull = this.counter("inflight.full", "Messages sent with the in flight window full");
+        Gauge.builder(PREFIX + "inflight", this.inFlight, AtomicInteger::get)
+                .tag("transport", this.transport)
+                .description("Messages sent and not acknowledged yet (AMQP disposition, MQTT PUBACK/PUBCOMP)")
+                .register(Metrics.globalRegistry);
+        this.senderAttach = this.timer("sender");
+        this.receiverAttach = this.timer("receiver");
+    }
+
+    /**
+     * Return the meters for a transport protocol
+     *
+     * @param transport transport protocol (amqp, mqtt, ...)
+     * @return  meters instance
+     */
+    public static ClientMetrics of(String transport) {
+        return instances.computeIfAbsent(transport, ClientMetrics::new);
+    }
+
+    private Counter counter(String name, String description) {
+        return Counter.builder(PREFIX + name)
+                .tag("transport", this.transport)
+                .description(description)
+                .register(Metrics.globalRegistry);
+    }
+
+    private Timer timer(String link) {
+        return Timer.builder(PREFIX + "link.attach")
+                .tag("transport", this.transport)
+                .tag("link", link)
+                .description("Time for a link (or subscription) to be attached")
+                .register(Metrics.globalRegistry);
+    }
+
+    public void sent() {
+        this.sent.increment();
+    }
+
+    public void received() {
+        this.received.increment();
+    }
+
+    /**
+     * @param outcome   outcome of the disposition (accepted, rejected, released, modified)
+     */
+    public void disposition(String outcome) {
+        this.dispositions.computeIfAbsent(outcome, o ->
+                Counter.builder(PREFIX + "dispositions")
+                        .tag("transport", this.transport)
+                        .tag("outcome", o)
+                        .description("Dispositions of the messages sent")
+                        .register(Metrics.globalRegistry))
+                .increment();
+    }
+
+    public void connectionLost() {
+        this.connectionsLost.increment();
+    }
+
+    public void reconnect() {
+        this.reconnects.increment();
+    }
+
+    public void decodeError() {
+        this.decodeErrors.increment();
+    }
+
+    public void pendingQueued() {
+        this.pendingQueued.increment();
+    }
+
+    public void pendingDropped() {
+        this.pendingDropped.increment();
+    }
+
+    public void outageDropped() {
+        this.outageDropped.increment();
+    }
+
+    public void discarded() {
+        this.discarded.increment();
+    }
+
+    public void inFlightFull() {
+        this.inFlightFull.increment();
+    }
+
+    /**
+     * @param delta change of the number of messages sent and not acknowledged yet by a client
+     */
+    public void inFlight(int delta) {
+        this.inFlight.addAndGet(delta);
+    }
+
+    /**
+     * @param start value of System.nanoTime() when the sender link was requested
+     */
+    public void senderAttached(long start) {
+        this.senderAttach.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param start value of System.nanoTime() when the receiver link (or subscription) was requested
+     */
+    public void receiverAttached(long start) {
+        this.receiverAttach.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+}
@@ -23,6 +23,7 @@ public class MessageDelivery {
 
     private final String address;
     private final byte[] data;
+    private final long creationTime;
 
     /**
      * Constructor
@@ -31,8 +32,20 @@ public class MessageDelivery {
      * @param data      message body
      */
     public MessageDelivery(String address, byte[] data) {
+        this(address, data, 0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param address   address on which message was delivered
+     * @param data      message body
+     * @param creationTime  time (ms since the epoch) the message was sent, 0 if the transport doesn't carry it
+     */
+    public MessageDelivery(String address, byte[] data, long creationTime) {
         this.address = address;
         this.data = data;
+        this.creationTime = creationTime;
     }
 
     /**
@@ -48,4 +61,11 @@ public class MessageDelivery {
     public byte[] message() {
         return this.data;
     }
+
+    /**
+     * @return  time (ms since the epoch) the message was sent, 0 if unknown
+     */
+    public long creationTime() {
+        return this.creationTime;
+    }
 }
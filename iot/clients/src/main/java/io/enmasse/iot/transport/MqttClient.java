@@ -25,6 +25,13 @@ import io.vertx.core.buffer.Buffer;
 import io.vertx.core.net.PemTrustOptions;
 import io.vertx.mqtt.MqttClientOptions;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -33,14 +40,59 @@ import java.util.Properties;
 public class MqttClient extends Client {
 
     private io.vertx.mqtt.MqttClient client;
+    private MqttQoS defaultQos;
+    // QoS by address (or address prefix), resolved ones are cached
+    private final Map<String, MqttQoS> qos = new HashMap<>();
+    private Properties config;
+    private int maxInFlight;
+    // messages published with QoS > 0 and not acknowledged yet, by message id
+    private final Map<Integer, Publish> inFlight = new LinkedHashMap<>();
+    // messages with QoS > 0 waiting for room in the in flight window, or for being published again after a reconnection
+    private final Deque<Publish> waiting = new ArrayDeque<>();
+    // messages with QoS > 0 handed to the MQTT client and not acknowledged yet (the client itself fails them beyond
+    // its max in flight queue), reported by the in flight gauge of the transport
+    private int inFlightDepth;
+    private boolean drainRequested;
+    // when the subscriptions not acknowledged yet were requested, by message id
+    private final Map<Integer, Long> subscribing = new HashMap<>();
 
     public MqttClient(String hostname, int port, String serverCert, Vertx vertx) {
-        super(hostname, port, serverCert, vertx);
+        super(hostname, port, serverCert, vertx, "mqtt");
     }
 
     @Override
     public void init(Properties config) {
 
+        super.init(config);
+        this.config = config;
+        this.defaultQos = MqttQoS.valueOf(Integer.parseInt(config.getProperty(ClientConfig.MQTT_QOS, "0")));
+        this.maxInFlight = Integer.parseInt(config.getProperty(ClientConfig.MAX_IN_FLIGHT, "1000"));
+    }
+
+    /**
+     * Return the QoS for an address, configured for the address itself or for
+     * the longest of its prefixes (i.e. "control" for "control/device0")
+     *
+     * @param address   address to get the QoS for
+     * @return  QoS level
+     */
+    private MqttQoS qos(String address) {
+        MqttQoS qos = this.qos.get(address);
+        if (qos == null) {
+            qos = this.defaultQos;
+            String key = address;
+            while (key != null) {
+                String value = this.config.getProperty(ClientConfig.MQTT_QOS + "." + key);
+                if (value != null) {
+                    qos = MqttQoS.valueOf(Integer.parseInt(value));
+                    break;
+                }
+                int index = key.lastIndexOf('/');
+                key = index > 0 ? key.substring(0, index) : null;
+            }
+            this.qos.put(address, qos);
+        }
+        return qos;
     }
 
     @Override
@@ -51,10 +103,14 @@ public class MqttClient extends Client {
     @Override
     public void connect(String username, String password, Handler<AsyncResult<Client>> connectHandler) {
 
+        this.username = username;
+        this.password = password;
+
         MqttClientOptions options =
                 new MqttClientOptions()
                 .setUsername(username)
-                .setPassword(password);
+                .setPassword(password)
+                .setMaxInflightQueue(this.maxInFlight);
 
         if (this.serverCert != null && !this.serverCert.isEmpty()) {
             options.setSsl(true)
@@ -68,23 +124,65 @@ public class MqttClient extends Client {
             if (done.succeeded()) {
 
                 log.info("Connected to {}:{}", this.hostname, this.port);
+                this.context = Vertx.currentContext();
 
                 this.client.publishHandler(m -> {
 
+                    this.metrics.received();
                     MessageDelivery messageDelivery = new MessageDelivery(m.topicName(), m.payload().getBytes());
                     this.receivedHandler.handle(messageDelivery);
                 });
 
+                // messages in flight on the previous connection aren't going to be acknowledged anymore,
+                // they are published again (at-least-once) before the ones still waiting
+                if (!this.inFlight.isEmpty()) {
+                    log.info("Publishing again {} messages not acknowledged on the previous connection", this.inFlight.size());
+                    List<Publish> unacknowledged = new ArrayList<>(this.inFlight.values());
+                    for (int i = unacknowledged.size() - 1; i >= 0; i--) {
+                        this.waiting.addFirst(unacknowledged.get(i));
+                    }
+                    this.inFlight.clear();
+                }
+                this.inFlight(-this.inFlightDepth);
+                this.client.publishCompletionHandler(messageId -> {
+                    Publish publish = this.inFlight.remove(messageId);
+                    if (publish == null) {
+                        return;
+                    }
+                    this.inFlight(-1);
+                    if (publish.sendCompletionHandler != null) {
+                        publish.sendCompletionHandler.handle(messageId.toString());
+                    }
+                    this.publishWaiting();
+                    if (this.drainRequested && this.waiting.isEmpty() && this.inFlightDepth <= this.maxInFlight / 2) {
+                        this.drainRequested = false;
+                        if (this.drainHandler != null) {
+                            this.drainHandler.handle(null);
+                        }
+                    }
+                });
+
+                this.subscribing.clear();
                 this.client.subscribeCompletionHandler(suback -> {
+                    Long start = this.subscribing.remove(suback.messageId());
+                    if (start != null) {
+                        this.metrics.receiverAttached(start);
+                    }
                     log.info("Subscription [{}], granted QoS levels {}", suback.messageId(), suback.grantedQoSLevels());
                 });
 
+                this.client.closeHandler(v -> this.connectionLost());
+
+                this.connected();
+                this.publishWaiting();
                 connectHandler.handle(Future.succeededFuture(this));
 
             } else {
 
                 log.error("Error connecting to the service", done.cause());
-                connectHandler.handle(Future.failedFuture(done.cause()));
+                if (!this.retryConnect(connectHandler)) {
+                    connectHandler.handle(Future.failedFuture(done.cause()));
+                }
             }
         });
     }
@@ -92,7 +190,12 @@ public class MqttClient extends Client {
     @Override
     public void disconnect() {
 
-        this.vertx.runOnContext(c -> {
+        this.closing = true;
+        this.runOnContext(c -> {
+            // not connected, maybe still trying
+            if (!this.connected) {
+                return;
+            }
             this.client.disconnect();
             log.info("Disconnected");
         });
@@ -101,25 +204,121 @@ public class MqttClient extends Client {
     @Override
     public void send(String address, byte[] data, Handler<String> sendCompletionHandler) {
 
-        this.vertx.runOnContext(c -> {
-            this.client.publish(address, Buffer.buffer(data), MqttQoS.AT_MOST_ONCE, false, false, done -> {
+        this.runOnContext(c -> {
+            this.publish(address, data, sendCompletionHandler);
+        });
+    }
+
+    @Override
+    public void send(String address, List<byte[]> batch, Handler<String> sendCompletionHandler) {
+
+        // a single hop on the client context for the whole batch
+        this.runOnContext(c -> {
+            for (byte[] data : batch) {
+                this.publish(address, data, sendCompletionHandler);
+            }
+        });
+    }
+
+    @Override
+    public boolean sendQueueFull(String address) {
+
+        if (!this.connected) {
+            return this.outageBufferFull();
+        }
+
+        // the window applies to the whole connection, with QoS 0 there is nothing to wait for
+        if (this.inFlightDepth + this.waiting.size() >= this.maxInFlight) {
+            this.drainRequested = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void publish(String address, byte[] data, Handler<String> sendCompletionHandler) {
+
+        if (this.bufferIfNotConnected(address, data, sendCompletionHandler)) {
+            return;
+        }
+
+        MqttQoS qos = this.qos(address);
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+
+            this.client.publish(address, Buffer.buffer(data), qos, false, false, done -> {
 
                 if (done.succeeded()) {
+                    this.metrics.sent();
                     if (sendCompletionHandler != null) {
                         sendCompletionHandler.handle(done.result().toString());
                     }
+                } else {
+                    log.error("Error publishing to {}", address, done.cause());
+                    dropped(sendCompletionHandler);
                 }
             });
+            return;
+        }
+
+        // never beyond the window, the MQTT client would fail the publish
+        Publish publish = new Publish(address, data, sendCompletionHandler, qos);
+        if (!this.waiting.isEmpty() || this.inFlightDepth >= this.maxInFlight) {
+            this.metrics.inFlightFull();
+            this.waiting.add(publish);
+        } else {
+            this.publish(publish);
+        }
+    }
+
+    private void publishWaiting() {
+        // each one at most once, a publish failing right away goes back to the queue
+        for (int n = this.waiting.size(); n > 0 && this.connected && this.inFlightDepth < this.maxInFlight; n--) {
+            this.publish(this.waiting.poll());
+        }
+    }
+
+    private void publish(Publish publish) {
+
+        this.inFlight(1);
+        io.vertx.mqtt.MqttClient publishClient = this.client;
+        publishClient.publish(publish.address, Buffer.buffer(publish.data), publish.qos, false, false, done -> {
+
+            // completed on a previous connection, it's never going to be acknowledged
+            if (publishClient != this.client) {
+                this.waiting.add(publish);
+                this.publishWaiting();
+                return;
+            }
+            if (done.succeeded()) {
+                this.metrics.sent();
+                // with QoS 1 and 2 the message is sent when acknowledged (PUBACK or PUBCOMP)
+                this.inFlight.put(done.result(), publish);
+            } else {
+                // published again with the ones waiting when connected back
+                log.warn("Error publishing to {}, retrying", publish.address, done.cause());
+                this.inFlight(-1);
+                this.waiting.add(publish);
+            }
         });
     }
 
+    private void inFlight(int delta) {
+        this.inFlightDepth += delta;
+        this.metrics.inFlight(delta);
+    }
+
     @Override
     public void receive(String address) {
 
-        this.vertx.runOnContext(c -> {
-            this.client.subscribe(address, MqttQoS.AT_MOST_ONCE.value(), done -> {
+        this.runOnContext(c -> {
+            this.subscriptions.add(address);
+            if (!this.connected) {
+                return;
+            }
+            long start = System.nanoTime();
+            this.client.subscribe(address, this.qos(address).value(), done -> {
 
                 if (done.succeeded()) {
+                    this.subscribing.put(done.result(), start);
                     log.info("Subscription request [{}] for {}", done.result(), address);
                 } else {
                     log.error("Error subscribing to {}", address, done.cause());
@@ -127,4 +326,22 @@ public class MqttClient extends Client {
             });
         });
     }
+
+    /**
+     * Message published with QoS 1 or 2, until acknowledged
+     */
+    private static class Publish {
+
+        private final String address;
+        private final byte[] data;
+        private final Handler<String> sendCompletionHandler;
+        private final MqttQoS qos;
+
+        private Publish(String address, byte[] data, Handler<String> sendCompletionHandler, MqttQoS qos) {
+            this.address = address;
+            this.data = data;
+            this.sendCompletionHandler = sendCompletionHandler;
+            this.qos = qos;
+        }
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff for reconnecting, doubling the delay at every attempt
+ * up to a max and randomizing it in [delay/2, delay), so that many clients
+ * losing the connection at the same time don't come back all together
+ */
+public class Backoff {
+
+    private final long minDelay;
+    private final long maxDelay;
+    private int attempts;
+
+    /**
+     * Constructor
+     *
+     * @param minDelay  delay (ms) before the first attempt
+     * @param maxDelay  max delay (ms) between two attempts
+     */
+    public Backoff(long minDelay, long maxDelay) {
+        this.minDelay = Math.max(1, minDelay);
+        this.maxDelay = Math.max(this.minDelay, maxDelay);
+    }
+
+    /**
+     * Return the delay before the next attempt
+     *
+     * @return  delay (ms)
+     */
+    public long next() {
+        long delay = Math.min(this.minDelay << this.attempts, this.maxDelay);
+        // no more doubling once at the max, so the shift never overflows
+        if (delay < this.maxDelay) {
+            this.attempts++;
+        }
+        long half = delay / 2;
+        return Math.max(1, half + ThreadLocalRandom.current().nextLong(delay - half));
+    }
+
+    /**
+     * Reset the delay to the min, after a successful attempt
+     */
+    public void reset() {
+        this.attempts = 0;
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding for telemetry and control messages.
+ *
+ * Every frame starts with the version byte and the frame type byte, followed by
+ * the timestamp (int64, ms since the epoch) of the originating sensor reading when
+ * the type has the {@link #FLAG_TIMESTAMP} bit set, and then by :
+ * <ul>
+ *     <li>temperature : temperature (int16) and device id (uint8 length prefixed UTF-8)</li>
+ *     <li>temperature batch : count (uint16) and count times the temperature frame body</li>
+ *     <li>temperature series : device id, count (uint16) and count times the reading offset (uint32, ms
+ *     from the frame timestamp, which is the oldest reading one) and temperature (int16), for the values
+ *     read by the same device and sent together</li>
+ *     <li>telemetry : device id, metrics count (uint8) and identifiers (uint8, see {@link SensorMetric}),
+ *     samples count (uint16) and samples count times the sample offset (uint32, ms from the frame timestamp,
+ *     which is the oldest sample one) and values (int16 each, in the metrics order), for the values of all
+ *     the sensors read by a device at the same time</li>
+ *     <li>command : operation (uint8, 0 = close, 1 = open), max temperature (int16) and device id</li>
+ * </ul>
+ * All the multi-byte values are big endian.
+ */
+public final class BinaryCodec {
+
+    public static final String CONTENT_TYPE = "application/vnd.enmasse.iot.v1+binary";
+
+    public static final byte VERSION = 0x01;
+
+    public static final byte TYPE_TEMPERATURE = 0x01;
+    public static final byte TYPE_TEMPERATURE_BATCH = 0x02;
+    public static final byte TYPE_COMMAND = 0x03;
+    public static final byte TYPE_TEMPERATURE_SERIES = 0x04;
+    public static final byte TYPE_TELEMETRY = 0x05;
+
+    public static final byte FLAG_TIMESTAMP = (byte) 0x80;
+
+    public static final byte OPERATION_CLOSE = 0x00;
+    public static final byte OPERATION_OPEN = 0x01;
+
+    private static final int HEADER_SIZE = 2;
+    private static final int TIMESTAMP_SIZE = 8;
+    private static final int MAX_DEVICEID_LENGTH = 0xFF;
+    private static final int MAX_BATCH_COUNT = 0xFFFF;
+    private static final long MAX_READING_OFFSET = 0xFFFFFFFFL;
+    private static final int MAX_METRICS_COUNT = 0xFF;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Handler for temperature values decoded from a frame
+     */
+    @FunctionalInterface
+    public interface TemperatureHandler {
+
+        /**
+         * Called for each decoded temperature value
+         *
+         * @param deviceId  device identifier
+         * @param temperature   temperature value
+         */
+        void handle(String deviceId, int temperature);
+    }
+
+    /**
+     * Handler for temperature values decoded from a frame, along with the time they were read
+     */
+    @FunctionalInterface
+    public interface ReadingHandler {
+
+        /**
+         * Called for each decoded temperature value
+         *
+         * @param deviceId  device identifier
+         * @param temperature   temperature value
+         * @param timestamp time of the reading (ms since the epoch), 0 if unknown
+         */
+        void handle(String deviceId, int temperature, long timestamp);
+    }
+
+    /**
+     * Handler for the sensors values sampled at the same time, decoded from a frame
+     */
+    @FunctionalInterface
+    public interface SampleHandler {
+
+        /**
+         * Called for each decoded sample
+         *
+         * @param deviceId  device identifier
+         * @param timestamp time of the sample (ms since the epoch), 0 if unknown
+         * @param values    values of the sampled metrics
+         */
+        void handle(String deviceId, long timestamp, Map<SensorMetric, Integer> values);
+    }
+
+    /**
+     * Handler for commands decoded from a frame
+     */
+    @FunctionalInterface
+    public interface CommandHandler {
+
+        /**
+         * Called for the decoded command
+         *
+         * @param deviceId  device identifier
+         * @param operation operation, open or close
+         * @param max   temperature value which caused the command
+         */
+        void handle(String deviceId, String operation, int max);
+    }
+
+    /**
+     * Check if a payload is a binary frame
+     *
+     * @param data  bytes array with the payload
+     * @param offset    offset of the payload in the array
+     * @param length    length of the payload
+     * @return  if the payload starts with the binary format version
+     */
+    public static boolean isBinary(byte[] data, int offset, int length) {
+        return length >= HEADER_SIZE && data[offset] == VERSION;
+    }
+
+    /**
+     * Encode a temperature value
+     *
+     * @param deviceId  device identifier
+     * @param temperature   temperature value
+     * @return  encoded frame
+     */
+    public static byte[] encodeTemperature(String deviceId, int temperature) {
+        return encodeTemperature(deviceId, temperature, 0);
+    }
+
+    /**
+     * Encode a temperature value with the time it was read
+     *
+     * @param deviceId  device identifier
+     * @param temperature   temperature value
+     * @param timestamp time of the reading (ms since the epoch), 0 if unknown
+     * @return  encoded frame
+     */
+    public static byte[] encodeTemperature(String deviceId, int temperature, long timestamp) {
+        byte[] id = deviceId(deviceId);
+        byte[] frame = new byte[headerSize(timestamp) + 3 + id.length];
+        int pos = writeHeader(frame, TYPE_TEMPERATURE, timestamp);
+        writeTemperature(frame, pos, id, temperature);
+        return frame;
+    }
+
+    /**
+     * Encode a batch of temperature values
+     *
+     * @param deviceIds device identifiers
+     * @param temperatures  temperature values, in the same order of the device identifiers
+     * @return  encoded frame
+     */
+    public static byte[] encodeTemperatures(List<String> deviceIds, List<Integer> temperatures) {
+        return encodeTemperatures(deviceIds, temperatures, 0);
+    }
+
+    /**
+     * Encode a batch of temperature values with a single timestamp for the whole batch
+     *
+     * @param deviceIds device identifiers
+     * @param temperatures  temperature values, in the same order of the device identifiers
+     * @param timestamp time of the (oldest) reading (ms since the epoch), 0 if unknown
+     * @return  encoded frame
+     */
+    public static byte[] encodeTemperatures(List<String> deviceIds, List<Integer> temperatures, long timestamp) {
+        if (deviceIds.size() > MAX_BATCH_COUNT) {
+            throw new IllegalArgumentException("Too many values in a batch " + deviceIds.size());
+        }
+        byte[][] ids = new byte[deviceIds.size()][];
+        int size = headerSize(timestamp) + 2;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = deviceId(deviceIds.get(i));
+            size += 3 + ids[i].length;
+        }
+
+        byte[] frame = new byte[size];
+        int pos = writeHeader(frame, TYPE_TEMPERATURE_BATCH, timestamp);
+        frame[pos++] = (byte) (ids.length >> 8);
+        frame[pos++] = (byte) ids.length;
+        for (int i = 0; i < ids.length; i++) {
+            pos = writeTemperature(frame, pos, ids[i], temperatures.get(i));
+        }
+        return frame;
+    }
+
+    /**
+     * Encode the temperature values read by a device over time, each one with the time it was read
+     *
+     * @param deviceId  device identifier
+     * @param temperatures  temperature values
+     * @param timestamps    times of the readings (ms since the epoch), in the same order of the temperature values
+     * @return  encoded frame
+     */
+    public static byte[] encodeTemperatureSeries(String deviceId, List<Integer> temperatures, List<Long> timestamps) {
+        if (temperatures.size() > MAX_BATCH_COUNT) {
+            throw new IllegalArgumentException("Too many values in a series " + temperatures.size());
+        }
+        long timestamp = 0;
+        for (long readingTimestamp : timestamps) {
+            if (timestamp == 0 || readingTimestamp < timestamp) {
+                timestamp = readingTimestamp;
+            }
+        }
+
+        byte[] id = deviceId(deviceId);
+        byte[] frame = new byte[headerSize(timestamp) + 3 + id.length + 6 * temperatures.size()];
+        int pos = writeHeader(frame, TYPE_TEMPERATURE_SERIES, timestamp);
+        frame[pos++] = (byte) id.length;
+        System.arraycopy(id, 0, frame, pos, id.length);
+        pos += id.length;
+        frame[pos++] = (byte) (temperatures.size() >> 8);
+        frame[pos++] = (byte) temperatures.size();
+        for (int i = 0; i < temperatures.size(); i++) {
+            pos = writeOffset(frame, pos, timestamps.get(i), timestamp);
+            pos = writeValue(frame, pos, temperatures.get(i));
+        }
+        return frame;
+    }
+
+    /**
+     * Encode the values of more sensors sampled at the same time, for one or more samples
+     *
+     * @param deviceId  device identifier
+     * @param metrics   sampled metrics, each sample must have a value for all of them
+     * @param samples   values of the metrics for every sample
+     * @param timestamps    times of the samples (ms since the epoch), in the same order of the samples
+     * @return  encoded frame
+     */
+    public static byte[] encodeTelemetry(String deviceId, List<SensorMetric> metrics, List<Map<SensorMetric, Integer>> samples, List<Long> timestamps) {
+        if (metrics.size() > MAX_METRICS_COUNT) {
+            throw new IllegalArgumentException("Too many metrics in a sample " + metrics.size());
+        }
+        if (samples.size() > MAX_BATCH_COUNT) {
+            throw new IllegalArgumentException("Too many samples in a frame " + samples.size());
+        }
+        long timestamp = 0;
+        for (long sampleTimestamp : timestamps) {
+            if (timestamp == 0 || sampleTimestamp < timestamp) {
+                timestamp = sampleTimestamp;
+            }
+        }
+
+        byte[] id = deviceId(deviceId);
+        byte[] frame = new byte[headerSize(timestamp) + 4 + id.length + metrics.size() + (4 + 2 * metrics.size()) * samples.size()];
+        int pos = writeHeader(frame, TYPE_TELEMETRY, timestamp);
+        frame[pos++] = (byte) id.length;
+        System.arraycopy(id, 0, frame, pos, id.length);
+        pos += id.length;
+        frame[pos++] = (byte) metrics.size();
+        for (SensorMetric metric : metrics) {
+            frame[pos++] = (byte) metric.id();
+        }
+        frame[pos++] = (byte) (samples.size() >> 8);
+        frame[pos++] = (byte) samples.size();
+        for (int i = 0; i < samples.size(); i++) {
+            pos = writeOffset(frame, pos, timestamps.get(i), timestamp);
+            for (SensorMetric metric : metrics) {
+                Integer value = samples.get(i).get(metric);
+                if (value == null) {
+                    throw new IllegalArgumentException("Missing " + metric + " value in sample " + i);
+                }
+                pos = writeValue(frame, pos, value);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Encode a command
+     *
+     * @param deviceId  device identifier
+     * @param operation operation, open or close
+     * @param max   temperature value which caused the command
+     * @return  encoded frame
+     */
+    public static byte[] encodeCommand(String deviceId, String operation, int max) {
+        return encodeCommand(deviceId, operation, max, 0);
+    }
+
+    /**
+     * Encode a command carrying the time of the sensor reading which caused it
+     *
+     * @param deviceId  device identifier
+     * @param operation operation, open or close
+     * @param max   temperature value which caused the command
+     * @param timestamp time of the reading (ms since the epoch), 0 if unknown
+     * @return  encoded frame
+     */
+    public static byte[] encodeCommand(String deviceId, String operation, int max, long timestamp) {
+        byte[] id = deviceId(deviceId);
+        byte[] frame = new byte[headerSize(timestamp) + 4 + id.length];
+        int pos = writeHeader(frame, TYPE_COMMAND, timestamp);
+        frame[pos] = "open".equals(operation) ? OPERATION_OPEN : OPERATION_CLOSE;
+        writeTemperature(frame, pos + 1, id, max);
+        return frame;
+    }
+
+    /**
+     * Return the timestamp carried by a frame
+     *
+     * @param data  bytes array with the frame
+     * @param offset    offset of the frame in the array
+     * @param length    length of the frame
+     * @return  time of the originating reading (ms since the epoch), 0 if the frame has none
+     */
+    public static long timestamp(byte[] data, int offset, int length) {
+        checkHeader(data, offset, length);
+        if ((data[offset + 1] & FLAG_TIMESTAMP) == 0) {
+            return 0;
+        }
+        checkLength(offset + HEADER_SIZE + TIMESTAMP_SIZE, offset + length);
+        long timestamp = 0;
+        for (int i = 0; i < TIMESTAMP_SIZE; i++) {
+            timestamp = (timestamp << 8) | (data[offset + HEADER_SIZE + i] & 0xFF);
+        }
+        return timestamp;
+    }
+
+    /**
+     * Decode the temperature values in a temperature or temperature batch frame
+     *
+     * @param data  bytes array with the frame
+     * @param offset    offset of the frame in the array
+     * @param length    length of the frame
+     * @param handler   handler called for every temperature value
+     */
+    public static void decodeTemperatures(byte[] data, int offset, int length, TemperatureHandler handler) {
+        int end = offset + length;
+        checkHeader(data, offset, length);
+
+        int pos = bodyOffset(data, offset, end);
+        byte type = type(data, offset);
+        int count;
+        if (type == TYPE_TEMPERATURE) {
+            count = 1;
+        } else if (type == TYPE_TEMPERATURE_BATCH) {
+            checkLength(pos + 2, end);
+            count = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+        } else {
+            throw new IllegalArgumentException("Not a temperature frame, type " + type);
+        }
+
+        for (int i = 0; i < count; i++) {
+            checkLength(pos + 3, end);
+            int temperature = (short) (((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF));
+            int idLength = data[pos + 2] & 0xFF;
+            pos += 3;
+            checkLength(pos + idLength, end);
+            handler.handle(new String(data, pos, idLength, StandardCharsets.UTF_8), temperature);
+            pos += idLength;
+        }
+    }
+
+    /**
+     * Decode the temperature values in a temperature, temperature batch or temperature series frame,
+     * along with the time they were read : the frame timestamp for all the values of a temperature
+     * or temperature batch frame, the reading one for a series frame
+     *
+     * @param data  bytes array with the frame
+     * @param offset    offset of the frame in the array
+     * @param length    length of the frame
+     * @param handler   handler called for every temperature value
+     */
+    public static void decodeReadings(byte[] data, int offset, int length, ReadingHandler handler) {
+        int end = offset + length;
+        long timestamp = timestamp(data, offset, length);
+        if (type(data, offset) == TYPE_TELEMETRY) {
+            decodeTelemetry(data, offset, length, (deviceId, sampleTimestamp, values) -> {
+                Integer temperature = values.get(SensorMetric.TEMPERATURE);
+                if (temperature != null) {
+                    handler.handle(deviceId, temperature, sampleTimestamp);
+                }
+            });
+            return;
+        } else if (type(data, offset) != TYPE_TEMPERATURE_SERIES) {
+            decodeTemperatures(data, offset, length, (deviceId, temperature) -> handler.handle(deviceId, temperature, timestamp));
+            return;
+        }
+
+        int pos = bodyOffset(data, offset, end);
+        checkLength(pos + 1, end);
+        int idLength = data[pos] & 0xFF;
+        pos += 1;
+        checkLength(pos + idLength + 2, end);
+        String deviceId = new String(data, pos, idLength, StandardCharsets.UTF_8);
+        pos += idLength;
+        int count = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+        pos += 2;
+
+        checkLength(pos + 6 * count, end);
+        for (int i = 0; i < count; i++) {
+            handler.handle(deviceId, readValue(data, pos + 4), timestamp + readOffset(data, pos));
+            pos += 6;
+        }
+    }
+
+    /**
+     * Decode the samples in a telemetry frame or in any temperature frame, where every value is
+     * a sample with the temperature only
+     *
+     * @param data  bytes array with the frame
+     * @param offset    offset of the frame in the array
+     * @param length    length of the frame
+     * @param handler   handler called for every sample
+     */
+    public static void decodeTelemetry(byte[] data, int offset, int length, SampleHandler handler) {
+        int end = offset + length;
+        long timestamp = timestamp(data, offset, length);
+        if (type(data, offset) != TYPE_TELEMETRY) {
+            decodeReadings(data, offset, length, (deviceId, temperature, readingTimestamp) ->
+                    handler.handle(deviceId, readingTimestamp, Collections.singletonMap(SensorMetric.TEMPERATURE, temperature)));
+            return;
+        }
+
+        int pos = bodyOffset(data, offset, end);
+        checkLength(pos + 1, end);
+        int idLength = data[pos] & 0xFF;
+        pos += 1;
+        checkLength(pos + idLength + 1, end);
+        String deviceId = new String(data, pos, idLength, StandardCharsets.UTF_8);
+        pos += idLength;
+        int metricsCount = data[pos] & 0xFF;
+        pos += 1;
+        checkLength(pos + metricsCount + 2, end);
+        SensorMetric[] metrics = new SensorMetric[metricsCount];
+        for (int i = 0; i < metricsCount; i++) {
+            metrics[i] = SensorMetric.fromId(data[pos++] & 0xFF);
+        }
+        int count = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+        pos += 2;
+
+        checkLength(pos + (4 + 2 * metricsCount) * count, end);
+        for (int i = 0; i < count; i++) {
+            long sampleTimestamp = timestamp + readOffset(data, pos);
+            pos += 4;
+            Map<SensorMetric, Integer> values = new EnumMap<>(SensorMetric.class);
+            for (SensorMetric metric : metrics) {
+                values.put(metric, readValue(data, pos));
+                pos += 2;
+            }
+            handler.handle(deviceId, sampleTimestamp, values);
+        }
+    }
+
+    /**
+     * Decode a command frame
+     *
+     * @param data  bytes array with the frame
+     * @param offset    offset of the frame in the array
+     * @param length    length of the frame
+     * @param handler   handler called with the command
+     */
+    public static void decodeCommand(byte[] data, int offset, int length, CommandHandler handler) {
+        int end = offset + length;
+        checkHeader(data, offset, length);
+        if (type(data, offset) != TYPE_COMMAND) {
+            throw new IllegalArgumentException("Not a command frame, type " + type(data, offset));
+        }
+
+        int pos = bodyOffset(data, offset, end);
+        checkLength(pos + 4, end);
+        String operation = data[pos] == OPERATION_OPEN ? "open" : "close";
+        int max = (short) (((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF));
+        int idLength = data[pos + 3] & 0xFF;
+        pos += 4;
+        checkLength(pos + idLength, end);
+        handler.handle(new String(data, pos, idLength, StandardCharsets.UTF_8), operation, max);
+    }
+
+    private static int headerSize(long timestamp) {
+        return timestamp > 0 ? HEADER_SIZE + TIMESTAMP_SIZE : HEADER_SIZE;
+    }
+
+    private static int writeHeader(byte[] frame, byte type, long timestamp) {
+        frame[0] = VERSION;
+        if (timestamp <= 0) {
+            frame[1] = type;
+            return HEADER_SIZE;
+        }
+        frame[1] = (byte) (type | FLAG_TIMESTAMP);
+        for (int i = 0; i < TIMESTAMP_SIZE; i++) {
+            frame[HEADER_SIZE + i] = (byte) (timestamp >> (8 * (TIMESTAMP_SIZE - 1 - i)));
+        }
+        return HEADER_SIZE + TIMESTAMP_SIZE;
+    }
+
+    private static byte type(byte[] data, int offset) {
+        return (byte) (data[offset + 1] & ~FLAG_TIMESTAMP);
+    }
+
+    private static int bodyOffset(byte[] data, int offset, int end) {
+        if ((data[offset + 1] & FLAG_TIMESTAMP) == 0) {
+            return offset + HEADER_SIZE;
+        }
+        checkLength(offset + HEADER_SIZE + TIMESTAMP_SIZE, end);
+        return offset + HEADER_SIZE + TIMESTAMP_SIZE;
+    }
+
+    private static int writeTemperature(byte[] frame, int pos, byte[] id, int temperature) {
+        if (temperature < Short.MIN_VALUE || temperature > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Temperature out of range " + temperature);
+        }
+        frame[pos++] = (byte) (temperature >> 8);
+        frame[pos++] = (byte) temperature;
+        frame[pos++] = (byte) id.length;
+        System.arraycopy(id, 0, frame, pos, id.length);
+        return pos + id.length;
+    }
+
+    private static int writeOffset(byte[] frame, int pos, long timestamp, long frameTimestamp) {
+        long offset = timestamp - frameTimestamp;
+        if (offset < 0 || offset > MAX_READING_OFFSET) {
+            throw new IllegalArgumentException("Reading time out of range " + timestamp);
+        }
+        frame[pos++] = (byte) (offset >> 24);
+        frame[pos++] = (byte) (offset >> 16);
+        frame[pos++] = (byte) (offset >> 8);
+        frame[pos++] = (byte) offset;
+        return pos;
+    }
+
+    private static long readOffset(byte[] data, int pos) {
+        return ((long) (data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) |
+                ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    private static int writeValue(byte[] frame, int pos, int value) {
+        if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Value out of range " + value);
+        }
+        frame[pos++] = (byte) (value >> 8);
+        frame[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int readValue(byte[] data, int pos) {
+        return (short) (((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF));
+    }
+
+    private static byte[] deviceId(String deviceId) {
+        byte[] id = deviceId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_DEVICEID_LENGTH) {
+            throw new IllegalArgumentException("Device id too long " + deviceId);
+        }
+        return id;
+    }
+
+    private static void checkHeader(byte[] data, int offset, int length) {
+        if (!isBinary(data, offset, length)) {
+            throw new IllegalArgumentException("Not a binary frame or unsupported version");
+        }
+    }
+
+    private static void checkLength(int required, int end) {
+        if (required > end) {
+            throw new IllegalArgumentException("Truncated binary frame");
+        }
+    }
+}
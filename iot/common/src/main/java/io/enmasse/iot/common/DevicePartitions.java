@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.common;
+
+/**
+ * Partitioning of the devices across partitioned addresses (i.e. max/0 ... max/N-1),
+ * so that all the messages for a device always go through the same address and consumer
+ */
+public final class DevicePartitions {
+
+    private DevicePartitions() {
+    }
+
+    /**
+     * Return the partition for a device
+     *
+     * @param deviceId  device identifier
+     * @param partitions    number of partitions
+     * @return  partition index in [0, partitions)
+     */
+    public static int partition(String deviceId, int partitions) {
+        return (deviceId.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Return the address for a partition, which is the base address itself
+     * when there is only one partition or base address/partition otherwise
+     *
+     * @param address   base address
+     * @param partition partition index
+     * @param partitions    number of partitions
+     * @return  partition address
+     */
+    public static String address(String address, int partition, int partitions) {
+        return partitions > 1 ? address + "/" + partition : address;
+    }
+}
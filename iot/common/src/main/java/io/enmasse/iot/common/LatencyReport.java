@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.common;
+
+import org.HdrHistogram.EncodableHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogReader;
+
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Report of the latencies written by the {@link LatencyTracker} instances,
+ * merging the histograms of the same stage from all the provided log files
+ * (i.e. the ones of the devices, the analyzer executors and the thermostat).
+ *
+ * Usage : LatencyReport &lt;log file&gt; [&lt;log file&gt; ...]
+ */
+public class LatencyReport {
+
+    // stages in pipeline order, the other ones are reported after them
+    private static final List<String> STAGES = Arrays.asList(
+            "analyzer.hop", "analyzer.total",
+            "thermostat.hop", "thermostat.total",
+            "device.hop", "device.total");
+
+    public static void main(String[] args) throws FileNotFoundException {
+
+        if (args.length < 1) {
+            System.err.println("Missing latency log files parameter");
+            System.exit(1);
+        }
+
+        Map<String, Histogram> stages = new TreeMap<>((a, b) -> {
+            int indexA = STAGES.indexOf(a);
+            int indexB = STAGES.indexOf(b);
+            if (indexA == indexB) {
+                return a.compareTo(b);
+            }
+            return indexA < 0 ? 1 : indexB < 0 ? -1 : Integer.compare(indexA, indexB);
+        });
+
+        for (String file : args) {
+            HistogramLogReader reader = new HistogramLogReader(file);
+            EncodableHistogram interval;
+            while ((interval = reader.nextIntervalHistogram()) != null) {
+                String stage = interval.getTag() != null ? interval.getTag() : "untagged";
+                stages.computeIfAbsent(stage, s -> new Histogram(3)).add((Histogram) interval);
+            }
+        }
+
+        // "hop" is the latency from the previous stage sending, "total" from the sensor reading
+        System.out.println(String.format("%-20s %12s %10s %10s %10s %10s %10s", "stage (ms)", "count", "p50", "p90", "p99", "p99.9", "max"));
+        stages.forEach((stage, histogram) ->
+            System.out.println(String.format("%-20s %12d %10d %10d %10d %10d %10d", stage,
+                    histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50),
+                    histogram.getValueAtPercentile(90),
+                    histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9),
+                    histogram.getMaxValue())));
+    }
+}
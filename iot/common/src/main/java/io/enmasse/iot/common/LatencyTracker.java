@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.common;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a pipeline stage, from the time carried by a message (the originating
+ * sensor reading or the previous hop sending it) to the time the stage handles it.
+ *
+ * The values (ms) are recorded in HDR histograms and every interval they are
+ * written, tagged with the stage name, to an HdrHistogram log file shared by all
+ * the stages running in the same JVM, to be read by {@link LatencyReport}.
+ * The log is written by a dedicated thread, never by the threads recording.
+ * Nothing is recorded until the log is opened.
+ *
+ * The times are compared across hosts, so their clocks have to be in sync.
+ */
+public final class LatencyTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(LatencyTracker.class);
+
+    public static final long INTERVAL = 10000;
+
+    private static final Map<String, LatencyTracker> trackers = new ConcurrentHashMap<>();
+    private static volatile HistogramLogWriter writer;
+    private static ScheduledExecutorService scheduler;
+
+    private final String stage;
+    private final Recorder recorder = new Recorder(3);
+    private Histogram interval;
+
+    private LatencyTracker(String stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Return the tracker for a stage
+     *
+     * @param stage stage name (i.e. "thermostat.hop"), without spaces and commas
+     * @return  tracker instance
+     */
+    public static LatencyTracker of(String stage) {
+        return trackers.computeIfAbsent(stage, LatencyTracker::new);
+    }
+
+    /**
+     * Open the log file the histograms are written to, if not already open.
+     * Once open, it doesn't take any lock, so it can be called on every message
+     * by the code which can't open the log at startup
+     *
+     * @param path  log file path, nothing is done if null or empty
+     */
+    public static void open(String path) {
+
+        if (path == null || path.isEmpty() || writer != null) {
+            return;
+        }
+        synchronized (LatencyTracker.class) {
+
+            if (writer != null) {
+                return;
+            }
+            try {
+                HistogramLogWriter logWriter = new HistogramLogWriter(path);
+                long now = System.currentTimeMillis();
+                logWriter.outputLogFormatVersion();
+                logWriter.outputStartTime(now);
+                logWriter.setBaseTime(now);
+                logWriter.outputLegend();
+                writer = logWriter;
+
+                scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "latency-log-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                scheduler.scheduleAtFixedRate(LatencyTracker::write, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+                Runtime.getRuntime().addShutdownHook(new Thread(LatencyTracker::close));
+                log.info("Writing latencies to {}", path);
+            } catch (FileNotFoundException e) {
+                log.error("Error opening the latency log {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Record the latency from the provided time to now
+     *
+     * @param since time (ms since the epoch) the latency is measured from, nothing is recorded if 0
+     */
+    public void record(long since) {
+
+        if (writer == null || since <= 0) {
+            return;
+        }
+        // clocks out of sync can't give negative latencies
+        this.recorder.recordValue(Math.max(0, System.currentTimeMillis() - since));
+    }
+
+    private static synchronized void write() {
+
+        if (writer == null) {
+            return;
+        }
+        for (LatencyTracker tracker : trackers.values()) {
+            tracker.interval = tracker.recorder.getIntervalHistogram(tracker.interval);
+            if (tracker.interval.getTotalCount() > 0) {
+                tracker.interval.setTag(tracker.stage);
+                writer.outputIntervalHistogram(tracker.interval);
+            }
+        }
+    }
+
+    private static synchronized void close() {
+        scheduler.shutdown();
+        write();
+        writer.close();
+        writer = null;
+    }
+}
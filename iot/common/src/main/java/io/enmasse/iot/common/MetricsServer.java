@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.common;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP endpoint serving the meters of the global Micrometer registry
+ * in the Prometheus text format, for scraping on /metrics.
+ *
+ * The meters are always registered on the global registry, which costs
+ * next to nothing until the endpoint is started and adds a Prometheus one to it.
+ */
+public final class MetricsServer {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsServer.class);
+
+    public static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private MetricsServer() {
+    }
+
+    /**
+     * Start the metrics endpoint
+     *
+     * @param vertx Vert.x instance hosting the HTTP server
+     * @param port  port to listen on
+     * @return  HTTP server
+     */
+    public static HttpServer start(Vertx vertx, int port) {
+
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        Metrics.addRegistry(registry);
+
+        return vertx.createHttpServer()
+                .requestHandler(request -> {
+                    if (PATH.equals(request.path())) {
+                        request.response()
+                                .putHeader("Content-Type", CONTENT_TYPE)
+                                .end(registry.scrape());
+                    } else {
+                        request.response().setStatusCode(404).end();
+                    }
+                })
+                .listen(port, done -> {
+                    if (done.succeeded()) {
+                        log.info("Metrics available on port {} at {}", done.result().actualPort(), PATH);
+                    } else {
+                        log.error("Error starting the metrics endpoint on port {}", port, done.cause());
+                    }
+                });
+    }
+}
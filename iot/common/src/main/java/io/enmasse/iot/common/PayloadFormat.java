@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.common;
+
+/**
+ * Encoding used for the payload of telemetry and control messages
+ */
+public enum PayloadFormat {
+
+    JSON("application/json"),
+    BINARY(BinaryCodec.CONTENT_TYPE);
+
+    private final String contentType;
+
+    PayloadFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return  AMQP content type for the format
+     */
+    public String contentType() {
+        return this.contentType;
+    }
+
+    /**
+     * Return the format from its configuration value (json or binary)
+     *
+     * @param value configuration value, JSON if null
+     * @return  payload format
+     */
+    public static PayloadFormat fromConfig(String value) {
+        if (value == null || value.isEmpty()) {
+            return JSON;
+        }
+        return PayloadFormat.valueOf(value.toUpperCase());
+    }
+
+    /**
+     * Return the format of a payload, from the content type if provided or looking at
+     * the payload itself otherwise (i.e. MQTT which doesn't bring any content type).
+     * A binary payload always starts with the version byte, a JSON one with '{', '[' or a whitespace
+     *
+     * @param contentType   AMQP content type (can be null)
+     * @param data  bytes array with the payload
+     * @param offset    offset of the payload in the array
+     * @param length    length of the payload
+     * @return  payload format
+     */
+    public static PayloadFormat of(String contentType, byte[] data, int offset, int length) {
+        if (BinaryCodec.CONTENT_TYPE.equals(contentType)) {
+            return BINARY;
+        } else if (contentType != null && contentType.startsWith("application/json")) {
+            return JSON;
+        }
+        return BinaryCodec.isBinary(data, offset, length) ? BINARY : JSON;
+    }
+
+    /**
+     * Return the format of a payload looking at the payload itself
+     *
+     * @param data  payload
+     * @return  payload format
+     */
+    public static PayloadFormat of(byte[] data) {
+        return of(null, data, 0, data.length);
+    }
+}
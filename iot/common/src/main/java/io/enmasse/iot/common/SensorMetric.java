@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot.common;
+
+/**
+ * Metrics read by the device sensors, with the name used in the JSON payloads
+ * and the identifier used in the binary telemetry frames
+ */
+public enum SensorMetric {
+
+    TEMPERATURE("temperature", 0),
+    HUMIDITY("humidity", 1),
+    PRESSURE("pressure", 2);
+
+    private final String jsonName;
+    private final int id;
+
+    SensorMetric(String jsonName, int id) {
+        this.jsonName = jsonName;
+        this.id = id;
+    }
+
+    /**
+     * @return  name of the metric in the JSON payloads
+     */
+    public String jsonName() {
+        return this.jsonName;
+    }
+
+    /**
+     * @return  identifier of the metric in the binary frames
+     */
+    public int id() {
+        return this.id;
+    }
+
+    /**
+     * Return the metric from its name in the JSON payloads or configuration
+     *
+     * @param name  metric name
+     * @return  sensor metric
+     */
+    public static SensorMetric fromName(String name) {
+        for (SensorMetric metric : values()) {
+            if (metric.jsonName.equalsIgnoreCase(name.trim())) {
+                return metric;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sensor metric " + name);
+    }
+
+    /**
+     * Return the metric from its identifier in the binary frames
+     *
+     * @param id    metric identifier
+     * @return  sensor metric
+     */
+    public static SensorMetric fromId(int id) {
+        for (SensorMetric metric : values()) {
+            if (metric.id == id) {
+                return metric;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sensor metric id " + id);
+    }
+}
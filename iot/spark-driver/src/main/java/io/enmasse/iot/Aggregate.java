@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot;
+
+import java.io.Serializable;
+
+/**
+ * Partial aggregation (count, sum, min and max) of a set of temperature values,
+ * keeping the time of the newest sensor reading among them
+ */
+public class Aggregate implements Serializable {
+
+    private final int count;
+    private final long sum;
+    private final int min;
+    private final int max;
+    private final long timestamp;
+
+    /**
+     * Constructor
+     *
+     * @param count number of aggregated values
+     * @param sum   sum of the aggregated values
+     * @param min   min of the aggregated values
+     * @param max   max of the aggregated values
+     */
+    public Aggregate(int count, long sum, int min, int max) {
+        this(count, sum, min, max, 0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param count number of aggregated values
+     * @param sum   sum of the aggregated values
+     * @param min   min of the aggregated values
+     * @param max   max of the aggregated values
+     * @param timestamp time of the newest reading (ms since the epoch), 0 if unknown
+     */
+    public Aggregate(int count, long sum, int min, int max, long timestamp) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Return the aggregation of a single value
+     *
+     * @param value value to aggregate
+     * @return  instance of Aggregate
+     */
+    public static Aggregate of(int value) {
+        return new Aggregate(1, value, value, value);
+    }
+
+    /**
+     * Return the aggregation of a single device value
+     *
+     * @param deviceTemperature value to aggregate
+     * @return  instance of Aggregate
+     */
+    public static Aggregate of(DeviceTemperature deviceTemperature) {
+        int value = deviceTemperature.temperature();
+        return new Aggregate(1, value, value, value, deviceTemperature.timestamp());
+    }
+
+    /**
+     * Combine the current aggregation with another one
+     *
+     * @param other other aggregation
+     * @return  aggregation of the values in both
+     */
+    public Aggregate combine(Aggregate other) {
+        return new Aggregate(this.count + other.count,
+                this.sum + other.sum,
+                Math.min(this.min, other.min),
+                Math.max(this.max, other.max),
+                Math.max(this.timestamp, other.timestamp));
+    }
+
+    /**
+     * @return  number of aggregated values
+     */
+    public int count() {
+        return this.count;
+    }
+
+    /**
+     * @return  sum of the aggregated values
+     */
+    public long sum() {
+        return this.sum;
+    }
+
+    /**
+     * @return  min of the aggregated values
+     */
+    public int min() {
+        return this.min;
+    }
+
+    /**
+     * @return  max of the aggregated values
+     */
+    public int max() {
+        return this.max;
+    }
+
+    /**
+     * @return  time of the newest aggregated reading (ms since the epoch), 0 if unknown
+     */
+    public long timestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return  average of the aggregated values
+     */
+    public int avg() {
+        return (int) Math.round((double) this.sum / this.count);
+    }
+
+    @Override
+    public String toString() {
+        return "Aggregate(count=" +
+                this.count + ",sum=" +
+                this.sum + ",min=" +
+                this.min + ",max=" +
+                this.max + ",timestamp=" +
+                this.timestamp + ")";
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import io.enmasse.iot.common.DevicePartitions;
+import io.enmasse.iot.common.PayloadFormat;
+import org.apache.spark.sql.ForeachWriter;
+import org.apache.spark.sql.Row;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structured Streaming sink publishing the max values of a partition through
+ * the executor wide pooled {@link AmqpSender}, to the (partitioned) max address
+ * of every device, when the partition is completely processed
+ */
+public class AmqpForeachWriter extends ForeachWriter<Row> {
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final String address;
+    private final int partitions;
+    private final int batchSize;
+    private final int sendWindow;
+    private final PayloadFormat payloadFormat;
+
+    // max values by address, for the partition currently processed
+    private transient Map<String, List<DeviceTemperature>> maxValues;
+
+    /**
+     * Constructor
+     *
+     * @param host  messaging service hostname
+     * @param port  messaging service port
+     * @param username  username for authentication
+     * @param password  password for authentication
+     * @param address   base address to send the max values to
+     * @param partitions    number of partitions of the address
+     * @param batchSize max number of values packed in a single message
+     * @param sendWindow    max number of messages sent but not settled yet
+     * @param payloadFormat encoding of the max values
+     */
+    public AmqpForeachWriter(String host, int port, String username, String password, String address,
+                             int partitions, int batchSize, int sendWindow, PayloadFormat payloadFormat) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.address = address;
+        this.partitions = partitions;
+        this.batchSize = batchSize;
+        this.sendWindow = sendWindow;
+        this.payloadFormat = payloadFormat;
+    }
+
+    @Override
+    public boolean open(long partitionId, long version) {
+        this.maxValues = new HashMap<>();
+        return true;
+    }
+
+    @Override
+    public void process(Row row) {
+        DeviceTemperature deviceTemperature = new DeviceTemperature(row.getString(0), row.getInt(1), row.getTimestamp(2).getTime());
+        String maxAddress = DevicePartitions.address(this.address,
+                DevicePartitions.partition(deviceTemperature.deviceId(), this.partitions), this.partitions);
+        this.maxValues.computeIfAbsent(maxAddress, a -> new ArrayList<>()).add(deviceTemperature);
+    }
+
+    @Override
+    public void close(Throwable errorOrNull) {
+
+        if (errorOrNull != null) {
+            return;
+        }
+
+        for (Map.Entry<String, List<DeviceTemperature>> entry : this.maxValues.entrySet()) {
+            try {
+                AmqpSender maxSender = AmqpSender.get(this.host, this.port, this.username, this.password, entry.getKey());
+                maxSender.send(entry.getValue().iterator(), this.batchSize, this.sendWindow,
+                        batch -> DeviceTemperature.toMessage(batch, this.payloadFormat));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted sending max values to " + entry.getKey(), e);
+            } catch (Exception e) {
+                throw new IllegalStateException("Error sending max values to " + entry.getKey(), e);
+            }
+        }
+    }
+}
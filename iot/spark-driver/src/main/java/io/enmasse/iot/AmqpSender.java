@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.proton.ProtonClient;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonDelivery;
+import io.vertx.proton.ProtonSender;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Long-lived AMQP sender link, pooled per executor JVM and keyed by
+ * host, port, credentials and address, so that all the tasks running
+ * on the same executor share one connection instead of opening a new
+ * one for every record. When the link or the connection is closed, the sends
+ * in progress fail right away; a task timing out only evicts the sender from
+ * the pool, which is closed when the other tasks using it are done
+ */
+public class AmqpSender {
+
+    private static final Logger log = LoggerFactory.getLogger(AmqpSender.class);
+
+    private static final long OPEN_TIMEOUT = 10000;
+    private static final long SEND_TIMEOUT = 30000;
+
+    private static final Map<String, AmqpSender> senders = new ConcurrentHashMap<>();
+    private static Vertx vertx;
+
+    private final String key;
+    private final String address;
+    private final Context context;
+    private final ProtonConnection connection;
+    private final ProtonSender sender;
+    // messages waiting for link credit and messages sent but not settled yet, accessed only on the connection context
+    private final Deque<Message> blocked = new ArrayDeque<>();
+    private final Deque<Window> blockedWindows = new ArrayDeque<>();
+    private final Map<ProtonDelivery, Window> unsettled = new IdentityHashMap<>();
+    // tasks sending, the connection of an evicted sender is closed by the last one
+    private final AtomicInteger users = new AtomicInteger();
+    private volatile boolean evicted;
+    private volatile boolean closed;
+
+    private AmqpSender(String key, String address, Context context, ProtonConnection connection, ProtonSender sender) {
+        this.key = key;
+        this.address = address;
+        this.context = context;
+        this.connection = connection;
+        this.sender = sender;
+    }
+
+    /**
+     * Return the pooled sender for the provided address, opening a new
+     * connection and sender link if there isn't one or the previous one was closed
+     *
+     * @param host  messaging service hostname
+     * @param port  messaging service port
+     * @param username  username for authentication
+     * @param password  password for authentication
+     * @param address   address to send messages to
+     * @return  sender instance
+     * @throws Exception    if the connection or the link can't be opened
+     */
+    public static AmqpSender get(String host, int port, String username, String password, String address) throws Exception {
+
+        String key = username + ":" + password + "@" + host + ":" + port + "/" + address;
+        AmqpSender amqpSender = senders.get(key);
+        if (amqpSender == null || amqpSender.closed) {
+
+            synchronized (senders) {
+                amqpSender = senders.get(key);
+                if (amqpSender == null || amqpSender.closed) {
+                    amqpSender = open(key, host, port, username, password, address);
+                    senders.put(key, amqpSender);
+                }
+            }
+        }
+        return amqpSender;
+    }
+
+    private static synchronized Vertx vertx() {
+        if (vertx == null) {
+            vertx = Vertx.vertx();
+        }
+        return vertx;
+    }
+
+    private static AmqpSender open(String key, String host, int port, String username, String password, String address) throws Exception {
+
+        CompletableFuture<AmqpSender> future = new CompletableFuture<>();
+
+        ProtonClient client = ProtonClient.create(vertx());
+
+        log.info("Connecting to messaging {}:{} for sending to {} ...", host, port, address);
+        client.connect(host, port, username, password, done -> {
+
+            if (done.succeeded()) {
+
+                ProtonConnection connection = done.result();
+                connection.open();
+
+                ProtonSender sender = connection.createSender(address);
+                sender.openHandler(link -> {
+
+                    if (link.succeeded()) {
+
+                        log.info("... connected to {}:{}, sender link on {} open", host, port, address);
+
+                        AmqpSender amqpSender = new AmqpSender(key, address, Vertx.currentContext(), connection, sender);
+                        connection.closeHandler(c -> amqpSender.close());
+                        connection.disconnectHandler(c -> amqpSender.close());
+                        sender.closeHandler(l -> amqpSender.close());
+                        sender.sendQueueDrainHandler(s -> amqpSender.drain());
+                        future.complete(amqpSender);
+
+                    } else {
+
+                        log.error("Error opening the sender link on {}", address, link.cause());
+                        connection.close();
+                        future.completeExceptionally(link.cause());
+                    }
+                });
+                sender.open();
+
+            } else {
+
+                log.error("Error on AMQP connection for sending", done.cause());
+                future.completeExceptionally(done.cause());
+            }
+        });
+
+        return future.get(OPEN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send all the provided records over the sender link, packing up to batchSize
+     * records in each message and keeping at most window messages in flight,
+     * waiting for the dispositions of all of them before returning. Any message
+     * not accepted (rejected, released or modified) fails the send, so that the
+     * task is retried instead of losing its records
+     *
+     * @param records   records to send
+     * @param batchSize max number of records packed in a single message
+     * @param window    max number of messages sent but not settled yet
+     * @param converter function for converting a batch of records in the AMQP message to send
+     * @param <T>   record type
+     * @throws InterruptedException if interrupted while waiting for dispositions
+     */
+    public <T> void send(Iterator<T> records, int batchSize, int window, Function<List<T>, Message> converter) throws InterruptedException {
+
+        Window sendWindow = new Window(window);
+        int count = 0;
+
+        this.users.incrementAndGet();
+        try {
+            while (records.hasNext()) {
+
+                List<T> batch = new ArrayList<>(batchSize);
+                while (records.hasNext() && batch.size() < batchSize) {
+                    batch.add(records.next());
+                }
+
+                Message message = converter.apply(batch);
+                message.setAddress(this.address);
+                message.setCreationTime(System.currentTimeMillis());
+
+                // blocking the task when the window is full, so the partition can't be buffered unbounded
+                if (!sendWindow.settled.tryAcquire(SEND_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    this.evict();
+                    throw new IllegalStateException("Timeout waiting for credits on " + this.address);
+                }
+                sendWindow.check(this.address);
+
+                this.context.runOnContext(v -> this.sendOrBlock(message, sendWindow));
+                count++;
+            }
+
+            if (!sendWindow.settled.tryAcquire(window, SEND_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                this.evict();
+                throw new IllegalStateException("Timeout waiting for dispositions on " + this.address);
+            }
+            sendWindow.check(this.address);
+
+        } finally {
+            if (this.users.decrementAndGet() == 0 && this.evicted) {
+                this.close();
+            }
+        }
+        log.debug("Sent {} messages to {}", count, this.address);
+    }
+
+    private void sendOrBlock(Message message, Window sendWindow) {
+
+        if (this.closed) {
+            sendWindow.failed(new IllegalStateException("Sender closed"));
+        } else if (!this.blocked.isEmpty() || this.sender.sendQueueFull()) {
+            this.blocked.add(message);
+            this.blockedWindows.add(sendWindow);
+        } else {
+            this.doSend(message, sendWindow);
+        }
+    }
+
+    private void drain() {
+
+        while (!this.blocked.isEmpty() && !this.sender.sendQueueFull()) {
+            this.doSend(this.blocked.poll(), this.blockedWindows.poll());
+        }
+    }
+
+    private void doSend(Message message, Window sendWindow) {
+
+        ProtonDelivery sent = this.sender.send(message, delivery -> {
+            Window settledWindow = this.unsettled.remove(delivery);
+            if (settledWindow == null) {
+                return;
+            }
+            if (delivery.getRemoteState() instanceof Accepted) {
+                settledWindow.settled.release();
+            } else {
+                log.warn("Message to {} not accepted : {}", this.address, delivery.getRemoteState());
+                settledWindow.failed(new IllegalStateException("Message not accepted : " + delivery.getRemoteState()));
+            }
+        });
+        this.unsettled.put(sent, sendWindow);
+    }
+
+    /**
+     * Remove the sender from the pool, so that the next tasks open a new one,
+     * closing it when the tasks still using it are done
+     */
+    private void evict() {
+
+        this.evicted = true;
+        senders.remove(this.key, this);
+        if (this.users.get() == 0) {
+            this.close();
+        }
+    }
+
+    private void close() {
+
+        if (!this.closed) {
+            this.closed = true;
+            senders.remove(this.key, this);
+            this.context.runOnContext(v -> {
+                // the tasks waiting for these messages fail right away instead of timing out
+                IllegalStateException cause = new IllegalStateException("Sender link to " + this.address + " closed");
+                for (Window blockedWindow : this.blockedWindows) {
+                    blockedWindow.failed(cause);
+                }
+                for (Window unsettledWindow : this.unsettled.values()) {
+                    unsettledWindow.failed(cause);
+                }
+                this.blocked.clear();
+                this.blockedWindows.clear();
+                this.unsettled.clear();
+                this.connection.close();
+            });
+        }
+    }
+
+    /**
+     * Messages of a task in flight, with the first failure among them
+     */
+    private static class Window {
+
+        private final Semaphore settled;
+        private volatile Throwable failure;
+
+        private Window(int size) {
+            this.settled = new Semaphore(size);
+        }
+
+        private void failed(Throwable cause) {
+            if (this.failure == null) {
+                this.failure = cause;
+            }
+            this.settled.release();
+        }
+
+        private void check(String address) {
+            if (this.failure != null) {
+                throw new IllegalStateException("Error sending to " + address, this.failure);
+            }
+        }
+    }
+}
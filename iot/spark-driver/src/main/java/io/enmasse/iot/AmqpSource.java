@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import io.enmasse.iot.common.LatencyTracker;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.proton.ProtonClient;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonDelivery;
+import io.vertx.proton.ProtonReceiver;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.messaging.Rejected;
+import org.apache.qpid.proton.message.Message;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.execution.streaming.Offset;
+import org.apache.spark.sql.execution.streaming.Source;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Option;
+
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Structured Streaming source of the temperature values received on an AMQP address.
+ *
+ * The messages are received on the driver and accepted only when the batch they
+ * belong to is committed, so that the ones not processed yet are delivered again
+ * by the messaging service after a failure, without any write ahead log. The
+ * credits are given back when the messages are handed to a batch, not when they
+ * are committed: Spark commits a batch only when the next one has data, so the
+ * messages received and not committed are bounded to about twice the credits.
+ */
+public class AmqpSource implements Source {
+
+    private static final Logger log = LoggerFactory.getLogger(AmqpSource.class);
+
+    private static final long OPEN_TIMEOUT = 10000;
+
+    public static final StructType SCHEMA = new StructType()
+            .add("device_id", DataTypes.StringType, false)
+            .add("temperature", DataTypes.IntegerType, false)
+            .add("timestamp", DataTypes.TimestampType, false);
+
+    private final SQLContext sqlContext;
+    private final String address;
+    private final int credits;
+    private final String latencyLog;
+    private final String run = UUID.randomUUID().toString();
+
+    private final Vertx vertx;
+    private Context context;
+    private ProtonConnection connection;
+    private ProtonReceiver receiver;
+
+    // received and not committed yet, in sequence order, guarded by this
+    private final Deque<Received> received = new ArrayDeque<>();
+    private long sequence;
+    // last sequence handed to a batch, with its credit given back
+    private long handed;
+    private volatile Throwable failure;
+
+    /**
+     * Constructor, connecting and attaching to the address
+     *
+     * @param sqlContext    SQL context for building the batches
+     * @param host  messaging service hostname
+     * @param port  messaging service port
+     * @param username  username for authentication
+     * @param password  password for authentication
+     * @param address   address to receive the temperature values from
+     * @param credits   max number of messages received and not handed to a batch yet
+     * @param latencyLog    path of the latency log, null for not recording
+     */
+    public AmqpSource(SQLContext sqlContext, String host, int port, String username, String password,
+                      String address, int credits, String latencyLog) {
+        this.sqlContext = sqlContext;
+        this.address = address;
+        this.credits = credits;
+        this.latencyLog = latencyLog;
+        this.vertx = Vertx.vertx();
+        this.open(host, port, username, password);
+    }
+
+    private void open(String host, int port, String username, String password) {
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        LatencyTracker.open(this.latencyLog);
+
+        log.info("Connecting to messaging {}:{} for receiving from {} ...", host, port, this.address);
+        ProtonClient.create(this.vertx).connect(host, port, username, password, done -> {
+
+            if (done.succeeded()) {
+
+                this.context = Vertx.currentContext();
+                this.connection = done.result();
+                this.connection.closeHandler(c -> this.failed(new IllegalStateException("Connection closed")));
+                this.connection.disconnectHandler(c -> this.failed(new IllegalStateException("Connection lost")));
+                this.connection.open();
+
+                // credits are given back when the messages are handed to a batch, see getBatch
+                this.receiver = this.connection.createReceiver(this.address);
+                this.receiver.setAutoAccept(false);
+                this.receiver.setPrefetch(0);
+                this.receiver.handler(this::handleMessage);
+                this.receiver.openHandler(link -> {
+
+                    if (link.succeeded()) {
+                        log.info("... connected to {}:{}, receiver link on {} open", host, port, this.address);
+                        this.receiver.flow(this.credits);
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(link.cause());
+                    }
+                });
+                this.receiver.closeHandler(l -> this.failed(new IllegalStateException("Receiver link closed")));
+                this.receiver.open();
+
+            } else {
+                future.completeExceptionally(done.cause());
+            }
+        });
+
+        try {
+            future.get(OPEN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            this.vertx.close();
+            throw new IllegalStateException("Error attaching to " + this.address, e);
+        }
+    }
+
+    private void handleMessage(ProtonDelivery delivery, Message message) {
+
+        List<DeviceTemperature> deviceTemperatures;
+        try {
+            deviceTemperatures = DeviceTemperature.fromMessage(message);
+        } catch (RuntimeException e) {
+            deviceTemperatures = null;
+        }
+        if (deviceTemperatures == null) {
+            log.error("Discarded message : body not supported");
+            delivery.disposition(new Rejected(), true);
+            this.receiver.flow(1);
+            return;
+        }
+
+        TemperatureAnalyzer.hopLatency.record(message.getCreationTime());
+
+        // a message with a batch of values is a single delivery, accepted when all its rows are committed
+        List<Row> rows = new ArrayList<>(deviceTemperatures.size());
+        for (DeviceTemperature deviceTemperature : deviceTemperatures) {
+
+            TemperatureAnalyzer.totalLatency.record(deviceTemperature.timestamp());
+
+            // event time is the sensor reading one, or the sending one for devices not providing it
+            long eventTime = deviceTemperature.timestamp() > 0 ? deviceTemperature.timestamp() :
+                    message.getCreationTime() > 0 ? message.getCreationTime() : System.currentTimeMillis();
+
+            rows.add(RowFactory.create(deviceTemperature.deviceId(), deviceTemperature.temperature(), new Timestamp(eventTime)));
+        }
+        synchronized (this) {
+            this.received.add(new Received(++this.sequence, rows, delivery));
+        }
+    }
+
+    private void failed(Throwable cause) {
+        if (this.failure == null) {
+            log.error("Error receiving from {}", this.address, cause);
+            this.failure = cause;
+        }
+    }
+
+    @Override
+    public StructType schema() {
+        return SCHEMA;
+    }
+
+    @Override
+    public synchronized Option<Offset> getOffset() {
+
+        if (this.failure != null) {
+            throw new IllegalStateException("Error receiving from " + this.address, this.failure);
+        }
+        return this.sequence == 0 ? Option.empty() : Option.apply(new AmqpSourceOffset(this.run, this.sequence));
+    }
+
+    @Override
+    public Dataset<Row> getBatch(Option<Offset> start, Offset end) {
+
+        AmqpSourceOffset to = AmqpSourceOffset.from(end);
+        List<Row> rows = new ArrayList<>();
+
+        // the messages of a previous run weren't accepted, they are delivered again with new sequence numbers
+        if (this.run.equals(to.run())) {
+
+            long from = 0;
+            if (start.isDefined()) {
+                AmqpSourceOffset startOffset = AmqpSourceOffset.from(start.get());
+                if (this.run.equals(startOffset.run())) {
+                    from = startOffset.sequence();
+                }
+            }
+
+            int credits = 0;
+            synchronized (this) {
+                for (Received message : this.received) {
+                    if (message.sequence > to.sequence()) {
+                        break;
+                    }
+                    if (message.sequence > from) {
+                        rows.addAll(message.rows);
+                    }
+                    // counted once, even when the same batch is asked again
+                    if (message.sequence > this.handed) {
+                        credits++;
+                    }
+                }
+                this.handed = Math.max(this.handed, to.sequence());
+            }
+
+            // more messages can arrive for the next batch, while this one is still to be committed
+            if (credits > 0) {
+                int flow = credits;
+                this.context.runOnContext(v -> this.receiver.flow(flow));
+            }
+        }
+        return this.sqlContext.createDataFrame(rows, SCHEMA);
+    }
+
+    @Override
+    public void commit(Offset end) {
+
+        AmqpSourceOffset to = AmqpSourceOffset.from(end);
+        if (!this.run.equals(to.run())) {
+            return;
+        }
+
+        List<ProtonDelivery> deliveries = new ArrayList<>();
+        synchronized (this) {
+            while (!this.received.isEmpty() && this.received.peekFirst().sequence <= to.sequence()) {
+                deliveries.add(this.received.pollFirst().delivery);
+            }
+        }
+        if (!deliveries.isEmpty()) {
+            this.context.runOnContext(v -> {
+                for (ProtonDelivery delivery : deliveries) {
+                    delivery.disposition(Accepted.getInstance(), true);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void stop() {
+        // closing the connection as well, the messages not committed are delivered again
+        this.vertx.close();
+    }
+
+    /**
+     * Message received and not committed yet
+     */
+    private static class Received {
+
+        private final long sequence;
+        private final List<Row> rows;
+        private final ProtonDelivery delivery;
+
+        private Received(long sequence, List<Row> rows, ProtonDelivery delivery) {
+            this.sequence = sequence;
+            this.rows = rows;
+            this.delivery = delivery;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import io.vertx.core.json.JsonObject;
+import org.apache.spark.sql.execution.streaming.Offset;
+
+/**
+ * Offset of the AMQP source : the sequence number of the last received message
+ * along with the identifier of the source run, because the numbering starts
+ * again (with the unaccepted messages delivered again) when the query is restarted
+ */
+public class AmqpSourceOffset extends Offset {
+
+    private final String run;
+    private final long sequence;
+
+    /**
+     * Constructor
+     *
+     * @param run   identifier of the source run
+     * @param sequence  sequence number of the last received message
+     */
+    public AmqpSourceOffset(String run, long sequence) {
+        this.run = run;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Return an AMQP source offset from a generic one (i.e. read from the checkpoint)
+     *
+     * @param offset    offset
+     * @return  instance of AmqpSourceOffset
+     */
+    public static AmqpSourceOffset from(Offset offset) {
+        if (offset instanceof AmqpSourceOffset) {
+            return (AmqpSourceOffset) offset;
+        }
+        JsonObject json = new JsonObject(offset.json());
+        return new AmqpSourceOffset(json.getString("run"), json.getLong("sequence"));
+    }
+
+    /**
+     * @return  identifier of the source run
+     */
+    public String run() {
+        return this.run;
+    }
+
+    /**
+     * @return  sequence number of the last received message
+     */
+    public long sequence() {
+        return this.sequence;
+    }
+
+    @Override
+    public String json() {
+        return new JsonObject()
+                .put("run", this.run)
+                .put("sequence", this.sequence)
+                .encode();
+    }
+}
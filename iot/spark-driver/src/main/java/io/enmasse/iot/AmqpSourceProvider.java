@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import org.apache.spark.sql.SQLContext;
+import org.apache.spark.sql.execution.streaming.Source;
+import org.apache.spark.sql.sources.StreamSourceProvider;
+import org.apache.spark.sql.types.StructType;
+import scala.Option;
+import scala.Tuple2;
+import scala.collection.immutable.Map;
+
+/**
+ * Provider of the AMQP source, used as format of the stream reader with the options :
+ * <ul>
+ *     <li>host, port : messaging service</li>
+ *     <li>username, password : credentials for authentication, if needed</li>
+ *     <li>address : address to receive from</li>
+ *     <li>credits : max number of messages received and not handed to a batch yet (default 10000)</li>
+ *     <li>latencyLog : path of the latency log, if recording</li>
+ * </ul>
+ */
+public class AmqpSourceProvider implements StreamSourceProvider {
+
+    @Override
+    public Tuple2<String, StructType> sourceSchema(SQLContext sqlContext, Option<StructType> schema,
+                                                   String providerName, Map<String, String> parameters) {
+        return new Tuple2<>("amqp", AmqpSource.SCHEMA);
+    }
+
+    @Override
+    public Source createSource(SQLContext sqlContext, String metadataPath, Option<StructType> schema,
+                               String providerName, Map<String, String> parameters) {
+        return new AmqpSource(sqlContext,
+                option(parameters, "host", "localhost"),
+                Integer.parseInt(option(parameters, "port", "5672")),
+                option(parameters, "username", null),
+                option(parameters, "password", null),
+                option(parameters, "address", "temperature"),
+                Integer.parseInt(option(parameters, "credits", "10000")),
+                option(parameters, "latencyLog", null));
+    }
+
+    private static String option(Map<String, String> parameters, String key, String defaultValue) {
+        Option<String> value = parameters.get(key);
+        return value.isDefined() ? value.get() : defaultValue;
+    }
+}
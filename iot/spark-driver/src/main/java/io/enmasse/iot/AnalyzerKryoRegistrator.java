@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import io.enmasse.iot.common.SensorMetric;
+import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.KryoRegistrator;
+import org.apache.spark.serializer.KryoSerializer;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Registration of the analyzer data path classes with Kryo, used by Spark for the receiver
+ * blocks, the shuffles of the per device aggregations and the state checkpoints, with compact
+ * serializers (variable length numbers, no field names) for the most frequent ones.
+ * The Scala tuples are already registered by Spark itself.
+ */
+public class AnalyzerKryoRegistrator implements KryoRegistrator {
+
+    /**
+     * Configure Spark for using Kryo with the analyzer classes registered
+     *
+     * @param conf  Spark configuration
+     * @return  the same Spark configuration
+     */
+    public static SparkConf configure(SparkConf conf) {
+        return conf.set("spark.serializer", KryoSerializer.class.getName())
+                .set("spark.kryo.registrator", AnalyzerKryoRegistrator.class.getName());
+    }
+
+    @Override
+    public void registerClasses(Kryo kryo) {
+        kryo.register(DeviceTemperature.class, new DeviceTemperatureSerializer());
+        kryo.register(DeviceTemperature[].class);
+        kryo.register(Aggregate.class, new AggregateSerializer());
+        kryo.register(TelemetryAggregate.class, new TelemetryAggregateSerializer());
+        kryo.register(SlidingWindow.class);
+        kryo.register(SlidingWindow.Pane.class);
+        kryo.register(SensorMetric.class);
+        kryo.register(DeviceDictionary.Chunk.class);
+        kryo.register(String[].class);
+        // received messages with a batch of values
+        kryo.register(ArrayList.class);
+    }
+
+    /**
+     * Kryo serializer for a device value, with its timestamp and the other sensors values
+     */
+    public static class DeviceTemperatureSerializer extends Serializer<DeviceTemperature> {
+
+        public DeviceTemperatureSerializer() {
+            super(false, true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, DeviceTemperature deviceTemperature) {
+            output.writeString(deviceTemperature.deviceId());
+            output.writeVarInt(deviceTemperature.temperature(), false);
+            output.writeVarLong(deviceTemperature.timestamp(), true);
+            writeMetrics(output, deviceTemperature.metrics());
+        }
+
+        @Override
+        public DeviceTemperature read(Kryo kryo, Input input, Class<DeviceTemperature> type) {
+            return new DeviceTemperature(input.readString(),
+                    input.readVarInt(false),
+                    input.readVarLong(true),
+                    readMetrics(input));
+        }
+
+        private static void writeMetrics(Output output, Map<SensorMetric, Integer> metrics) {
+            output.writeVarInt(metrics.size(), true);
+            for (Map.Entry<SensorMetric, Integer> metric : metrics.entrySet()) {
+                output.writeByte(metric.getKey().id());
+                output.writeVarInt(metric.getValue(), false);
+            }
+        }
+
+        private static Map<SensorMetric, Integer> readMetrics(Input input) {
+            int count = input.readVarInt(true);
+            if (count == 0) {
+                return null;
+            }
+            Map<SensorMetric, Integer> metrics = new EnumMap<>(SensorMetric.class);
+            for (int i = 0; i < count; i++) {
+                metrics.put(SensorMetric.fromId(input.readByte() & 0xFF), input.readVarInt(false));
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Kryo serializer for a partial aggregation
+     */
+    public static class AggregateSerializer extends Serializer<Aggregate> {
+
+        public AggregateSerializer() {
+            super(false, true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, Aggregate aggregate) {
+            output.writeVarInt(aggregate.count(), true);
+            output.writeVarLong(aggregate.sum(), false);
+            output.writeVarInt(aggregate.min(), false);
+            output.writeVarInt(aggregate.max(), false);
+            output.writeVarLong(aggregate.timestamp(), true);
+        }
+
+        @Override
+        public Aggregate read(Kryo kryo, Input input, Class<Aggregate> type) {
+            return new Aggregate(input.readVarInt(true),
+                    input.readVarLong(false),
+                    input.readVarInt(false),
+                    input.readVarInt(false),
+                    input.readVarLong(true));
+        }
+    }
+
+    /**
+     * Kryo serializer for the per metric partial aggregations
+     */
+    public static class TelemetryAggregateSerializer extends Serializer<TelemetryAggregate> {
+
+        private final AggregateSerializer aggregateSerializer = new AggregateSerializer();
+
+        public TelemetryAggregateSerializer() {
+            super(false, true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, TelemetryAggregate telemetryAggregate) {
+            output.writeVarInt(telemetryAggregate.aggregates().size(), true);
+            for (Map.Entry<SensorMetric, Aggregate> aggregate : telemetryAggregate.aggregates().entrySet()) {
+                output.writeByte(aggregate.getKey().id());
+                this.aggregateSerializer.write(kryo, output, aggregate.getValue());
+            }
+            output.writeVarLong(telemetryAggregate.timestamp(), true);
+        }
+
+        @Override
+        public TelemetryAggregate read(Kryo kryo, Input input, Class<TelemetryAggregate> type) {
+            int count = input.readVarInt(true);
+            Map<SensorMetric, Aggregate> aggregates = new EnumMap<>(SensorMetric.class);
+            for (int i = 0; i < count; i++) {
+                aggregates.put(SensorMetric.fromId(input.readByte() & 0xFF), this.aggregateSerializer.read(kryo, input, Aggregate.class));
+            }
+            return new TelemetryAggregate(aggregates, input.readVarLong(true));
+        }
+    }
+}
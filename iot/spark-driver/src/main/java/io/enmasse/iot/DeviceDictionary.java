@@ -0,0 +1,357 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.SparkContext;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.util.AccumulatorV2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary mapping the device ids to compact ints, used as keys in the shuffles and in
+ * the window state instead of the id strings. It lives on the driver, where it's extended
+ * on every batch with the unknown devices found by the previous ones, and it's shipped to the
+ * executors as a snapshot of immutable broadcast chunks: an extension broadcasts only a chunk
+ * with the new ids, merged with the newest chunks as in a log-structured merge so that there
+ * are never more than log2(ids) of them to look an id up into. The ids are stored in the
+ * checkpoint directory as well, a file per chunk, so that the keys in the window state
+ * recovered after a restart keep their meaning
+ */
+public class DeviceDictionary {
+
+    private static final Logger log = LoggerFactory.getLogger(DeviceDictionary.class);
+
+    private static final String FILE_PREFIX = "device-ids-";
+
+    private static DeviceDictionary instance;
+
+    private final JavaSparkContext sc;
+    private final Path dir;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<Broadcast<Chunk>> chunks = new ArrayList<>();
+    private final UnknownIds unknown = new UnknownIds();
+    private Snapshot snapshot;
+
+    private DeviceDictionary(SparkContext sc, String checkpointDir) {
+        this.sc = JavaSparkContext.fromSparkContext(sc);
+        this.dir = new Path(checkpointDir);
+    }
+
+    /**
+     * Return the driver dictionary, loading the stored ids on the first call
+     *
+     * @param sc    Spark context
+     * @param checkpointDir checkpoint directory where the ids are stored
+     * @return  device dictionary
+     */
+    public static synchronized DeviceDictionary get(SparkContext sc, String checkpointDir) {
+        if (instance == null) {
+            instance = new DeviceDictionary(sc, checkpointDir);
+            instance.load();
+            instance.snapshot = new Snapshot(instance.chunks);
+            sc.register(instance.unknown, "unknown device ids");
+        }
+        return instance;
+    }
+
+    /**
+     * Add the ids of the unknown devices found so far, reported through the accumulator
+     * returned by {@link #unknown()} by the batches which couldn't key their values
+     *
+     * @return  snapshot of the dictionary with all the ids added so far
+     */
+    public synchronized Snapshot extend() {
+
+        List<String> added = new ArrayList<>();
+        for (String id : this.unknown.value()) {
+            if (!this.indexes.containsKey(id)) {
+                this.indexes.put(id, this.indexes.size());
+                added.add(id);
+            }
+        }
+        // the ids reported while reading them are left for the next batch
+        this.unknown.value().removeAll(this.indexes.keySet());
+
+        if (!added.isEmpty()) {
+
+            // the new ids go in a chunk of their own, merged with the newest ones not bigger than it,
+            // the previous chunks are still fetched by the jobs running with them
+            Chunk chunk = new Chunk(this.indexes.size() - added.size(), added.toArray(new String[added.size()]));
+            List<Broadcast<Chunk>> merged = new ArrayList<>();
+            while (!this.chunks.isEmpty() && this.chunks.get(this.chunks.size() - 1).value().size() <= chunk.size()) {
+                Broadcast<Chunk> last = this.chunks.remove(this.chunks.size() - 1);
+                chunk = last.value().merge(chunk);
+                merged.add(last);
+            }
+            // stored before any key is used
+            this.store(chunk, merged);
+            for (Broadcast<Chunk> last : merged) {
+                last.unpersist(false);
+            }
+            this.chunks.add(this.sc.broadcast(chunk));
+            this.snapshot = new Snapshot(this.chunks);
+            log.info("Device dictionary extended to {} ids in {} chunks", this.indexes.size(), this.chunks.size());
+        }
+        return this.snapshot;
+    }
+
+    /**
+     * @return  snapshot of the dictionary with all the ids added so far
+     */
+    public synchronized Snapshot current() {
+        return this.snapshot;
+    }
+
+    /**
+     * @return  accumulator for reporting the ids of the devices which aren't in the dictionary yet
+     */
+    public UnknownIds unknown() {
+        return this.unknown;
+    }
+
+    private void load() {
+        try {
+            FileSystem fs = this.dir.getFileSystem(this.sc.hadoopConfiguration());
+            if (fs.exists(this.dir)) {
+                FileStatus[] files = fs.listStatus(this.dir, path -> path.getName().startsWith(FILE_PREFIX));
+                Arrays.sort(files, Comparator.comparingInt(DeviceDictionary::base));
+                for (FileStatus file : files) {
+
+                    int base = base(file);
+                    if (base < this.indexes.size()) {
+                        // already in a merged chunk stored before failing to delete this one
+                        continue;
+                    } else if (base > this.indexes.size()) {
+                        throw new IOException("Missing ids from " + this.indexes.size() + " to " + base);
+                    }
+
+                    List<String> ids = new ArrayList<>();
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file.getPath()), StandardCharsets.UTF_8))) {
+                        String id;
+                        while ((id = reader.readLine()) != null) {
+                            this.indexes.put(id, this.indexes.size());
+                            ids.add(id);
+                        }
+                    }
+                    this.chunks.add(this.sc.broadcast(new Chunk(base, ids.toArray(new String[ids.size()]))));
+                }
+                log.info("Device dictionary loaded with {} ids in {} chunks", this.indexes.size(), this.chunks.size());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error loading the device dictionary from " + this.dir, e);
+        }
+    }
+
+    private void store(Chunk chunk, List<Broadcast<Chunk>> merged) {
+        try {
+            // written aside and then renamed, so that a failure never leaves a partial chunk;
+            // a merged chunk replaces the file of the first one it contains and then the other ones are deleted
+            FileSystem fs = this.dir.getFileSystem(this.sc.hadoopConfiguration());
+            Path path = new Path(this.dir, FILE_PREFIX + chunk.base());
+            Path tmp = new Path(this.dir, FILE_PREFIX + chunk.base() + ".tmp");
+            try (Writer writer = new OutputStreamWriter(fs.create(tmp, true), StandardCharsets.UTF_8)) {
+                for (String id : chunk.ids) {
+                    writer.write(id);
+                    writer.write('\n');
+                }
+            }
+            fs.delete(path, false);
+            if (!fs.rename(tmp, path)) {
+                throw new IOException("Rename failed");
+            }
+            for (Broadcast<Chunk> last : merged) {
+                if (last.value().base() != chunk.base()) {
+                    fs.delete(new Path(this.dir, FILE_PREFIX + last.value().base()), false);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error storing the device dictionary to " + this.dir, e);
+        }
+    }
+
+    private static int base(FileStatus file) {
+        return Integer.parseInt(file.getPath().getName().substring(FILE_PREFIX.length()));
+    }
+
+    /**
+     * Immutable view of the dictionary shipped to the executors, made of broadcast chunks
+     * fetched once by every executor and shared with the following snapshots
+     */
+    public static class Snapshot implements Serializable {
+
+        private final List<Broadcast<Chunk>> chunks;
+
+        /**
+         * Constructor
+         *
+         * @param chunks    chunks of the dictionary, in index order
+         */
+        public Snapshot(List<Broadcast<Chunk>> chunks) {
+            this.chunks = new ArrayList<>(chunks);
+        }
+
+        /**
+         * Return the index of a device id
+         *
+         * @param id    device id
+         * @return  index, -1 if the device id isn't in the dictionary
+         */
+        public int index(String id) {
+            // the oldest chunks are the biggest ones
+            for (Broadcast<Chunk> chunk : this.chunks) {
+                int index = chunk.value().index(id);
+                if (index >= 0) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Return the device id at an index
+         *
+         * @param index index
+         * @return  device id
+         */
+        public String id(int index) {
+            for (int i = this.chunks.size() - 1; i >= 0; i--) {
+                Chunk chunk = this.chunks.get(i).value();
+                if (index >= chunk.base()) {
+                    return chunk.id(index);
+                }
+            }
+            throw new IllegalArgumentException("No device id at index " + index);
+        }
+    }
+
+    /**
+     * Device ids with contiguous indexes, starting from a base one
+     */
+    public static class Chunk implements Serializable {
+
+        private final int base;
+        private final String[] ids;
+        private final Map<String, Integer> indexes;
+
+        /**
+         * Constructor
+         *
+         * @param base  index of the first device id
+         * @param ids   device ids, at their index position from the base one
+         */
+        public Chunk(int base, String[] ids) {
+            this.base = base;
+            this.ids = ids;
+            this.indexes = new HashMap<>(ids.length * 4 / 3 + 1);
+            for (int i = 0; i < ids.length; i++) {
+                this.indexes.put(ids[i], base + i);
+            }
+        }
+
+        /**
+         * Return the chunk with the device ids of this one followed by the ones of the next one
+         *
+         * @param next  chunk starting at the end of this one
+         * @return  merged chunk
+         */
+        public Chunk merge(Chunk next) {
+            String[] merged = Arrays.copyOf(this.ids, this.ids.length + next.ids.length);
+            System.arraycopy(next.ids, 0, merged, this.ids.length, next.ids.length);
+            return new Chunk(this.base, merged);
+        }
+
+        public int base() {
+            return this.base;
+        }
+
+        public int size() {
+            return this.ids.length;
+        }
+
+        public int index(String id) {
+            Integer index = this.indexes.get(id);
+            return index != null ? index : -1;
+        }
+
+        public String id(int index) {
+            return this.ids[index - this.base];
+        }
+    }
+
+    /**
+     * Accumulator of the device ids not found in the dictionary while keying the values,
+     * each one reported once per task and added to the dictionary on the following batch
+     */
+    public static class UnknownIds extends AccumulatorV2<String, Set<String>> {
+
+        // merged by the scheduler while the driver reads it
+        private final Set<String> ids = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public boolean isZero() {
+            return this.ids.isEmpty();
+        }
+
+        @Override
+        public UnknownIds copy() {
+            UnknownIds copy = new UnknownIds();
+            copy.ids.addAll(this.ids);
+            return copy;
+        }
+
+        @Override
+        public void reset() {
+            this.ids.clear();
+        }
+
+        @Override
+        public void add(String id) {
+            this.ids.add(id);
+        }
+
+        @Override
+        public void merge(AccumulatorV2<String, Set<String>> other) {
+            this.ids.addAll(other.value());
+        }
+
+        @Override
+        public Set<String> value() {
+            return this.ids;
+        }
+    }
+}
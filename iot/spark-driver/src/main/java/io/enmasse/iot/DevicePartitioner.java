@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot;
+
+import io.enmasse.iot.common.DevicePartitions;
+import org.apache.spark.Partitioner;
+
+/**
+ * Spark partitioner by device id, matching the partitioned addresses
+ * the results are published to
+ */
+public class DevicePartitioner extends Partitioner {
+
+    private final int partitions;
+
+    /**
+     * Constructor
+     *
+     * @param partitions    number of partitions
+     */
+    public DevicePartitioner(int partitions) {
+        this.partitions = partitions;
+    }
+
+    @Override
+    public int numPartitions() {
+        return this.partitions;
+    }
+
+    @Override
+    public int getPartition(Object key) {
+        return DevicePartitions.partition((String) key, this.partitions);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof DevicePartitioner && ((DevicePartitioner) other).partitions == this.partitions;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.partitions;
+    }
+}
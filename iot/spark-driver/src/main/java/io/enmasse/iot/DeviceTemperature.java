@@ -16,20 +16,41 @@
 
 package io.enmasse.iot;
 
+import io.enmasse.iot.common.BinaryCodec;
+import io.enmasse.iot.common.PayloadFormat;
+import io.enmasse.iot.common.SensorMetric;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.proton.ProtonHelper;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.AmqpValue;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.messaging.Section;
+import org.apache.qpid.proton.message.Message;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Class representing a message from a device containing its id and temperature
+ * Class representing a message from a device containing its id and temperature,
+ * along with the time of the sensor reading when provided and the values of the
+ * other sensors (i.e. humidity, pressure) sampled at the same time
  */
 public class DeviceTemperature implements Serializable {
 
     public static final String JSON_DEVICEID = "device-id";
     public static final String JSON_TEMPERATURE = "temperature";
+    public static final String JSON_TIMESTAMP = "timestamp";
 
     private final String deviceId;
     private final int temperature;
+    private final long timestamp;
+    private final Map<SensorMetric, Integer> metrics;
 
     /**
      * Constructor
@@ -38,8 +59,33 @@ public class DeviceTemperature implements Serializable {
      * @param temperature   temperature
      */
     public DeviceTemperature(String deviceId, int temperature) {
+        this(deviceId, temperature, 0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param deviceId  deviceId
+     * @param temperature   temperature
+     * @param timestamp time of the sensor reading (ms since the epoch), 0 if unknown
+     */
+    public DeviceTemperature(String deviceId, int temperature, long timestamp) {
+        this(deviceId, temperature, timestamp, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param deviceId  deviceId
+     * @param temperature   temperature
+     * @param timestamp time of the sensor reading (ms since the epoch), 0 if unknown
+     * @param metrics   values of the other sensors sampled with the temperature, null if none
+     */
+    public DeviceTemperature(String deviceId, int temperature, long timestamp, Map<SensorMetric, Integer> metrics) {
         this.deviceId = deviceId;
         this.temperature = temperature;
+        this.timestamp = timestamp;
+        this.metrics = metrics != null && !metrics.isEmpty() ? metrics : Collections.emptyMap();
     }
 
     /**
@@ -56,11 +102,27 @@ public class DeviceTemperature implements Serializable {
         return this.temperature;
     }
 
+    /**
+     * @return  time of the sensor reading (ms since the epoch), 0 if unknown
+     */
+    public long timestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return  values of the other sensors sampled with the temperature (can be empty)
+     */
+    public Map<SensorMetric, Integer> metrics() {
+        return this.metrics;
+    }
+
     @Override
     public String toString() {
         return "DeviceTemperature(deviceId=" +
                 this.deviceId + ",temperature=" +
-                this.temperature + ")";
+                this.temperature + ",timestamp=" +
+                this.timestamp + ",metrics=" +
+                this.metrics + ")";
     }
 
     /**
@@ -72,9 +134,177 @@ public class DeviceTemperature implements Serializable {
         JsonObject json = new JsonObject();
         json.put(JSON_DEVICEID, this.deviceId);
         json.put(JSON_TEMPERATURE, this.temperature);
+        if (this.timestamp > 0) {
+            json.put(JSON_TIMESTAMP, this.timestamp);
+        }
+        for (Map.Entry<SensorMetric, Integer> metric : this.metrics.entrySet()) {
+            json.put(metric.getKey().jsonName(), metric.getValue());
+        }
         return json;
     }
 
+    /**
+     * Convert a list of instances in a JSON array
+     *
+     * @param deviceTemperatures    instances to convert
+     * @return  JSON array representation
+     */
+    public static JsonArray toJsonArray(List<DeviceTemperature> deviceTemperatures) {
+        JsonArray json = new JsonArray();
+        for (DeviceTemperature deviceTemperature : deviceTemperatures) {
+            json.add(deviceTemperature.toJson());
+        }
+        return json;
+    }
+
+    /**
+     * Convert current instance in a compact binary frame
+     *
+     * @return  binary representation
+     */
+    public byte[] toBinary() {
+        return BinaryCodec.encodeTemperature(this.deviceId, this.temperature, this.timestamp);
+    }
+
+    /**
+     * Convert a list of instances in a compact binary batch frame, carrying
+     * only the oldest timestamp as the frame one
+     *
+     * @param deviceTemperatures    instances to convert
+     * @return  binary representation
+     */
+    public static byte[] toBinary(List<DeviceTemperature> deviceTemperatures) {
+        List<String> deviceIds = new ArrayList<>(deviceTemperatures.size());
+        List<Integer> temperatures = new ArrayList<>(deviceTemperatures.size());
+        long timestamp = 0;
+        for (DeviceTemperature deviceTemperature : deviceTemperatures) {
+            deviceIds.add(deviceTemperature.deviceId);
+            temperatures.add(deviceTemperature.temperature);
+            if (deviceTemperature.timestamp > 0 && (timestamp == 0 || deviceTemperature.timestamp < timestamp)) {
+                timestamp = deviceTemperature.timestamp;
+            }
+        }
+        return BinaryCodec.encodeTemperatures(deviceIds, temperatures, timestamp);
+    }
+
+    /**
+     * Convert a list of instances in an AMQP message : a single value keeps the plain
+     * object payload, more values are packed in an array (or batch frame)
+     *
+     * @param deviceTemperatures    instances to convert
+     * @param payloadFormat payload encoding
+     * @return  AMQP message
+     */
+    public static Message toMessage(List<DeviceTemperature> deviceTemperatures, PayloadFormat payloadFormat) {
+        byte[] payload;
+        if (payloadFormat == PayloadFormat.BINARY) {
+            payload = deviceTemperatures.size() == 1 ?
+                    deviceTemperatures.get(0).toBinary() :
+                    toBinary(deviceTemperatures);
+        } else {
+            payload = deviceTemperatures.size() == 1 ?
+                    deviceTemperatures.get(0).toJson().toBuffer().getBytes() :
+                    toJsonArray(deviceTemperatures).toBuffer().getBytes();
+        }
+
+        Message message = ProtonHelper.message();
+        message.setContentType(payloadFormat.contentType());
+        message.setBody(new Data(new Binary(payload)));
+        return message;
+    }
+
+    /**
+     * Return the DeviceTemperature instances from an AMQP message sent by a device, which
+     * can carry a single value or a batch of them (JSON array, binary batch or series frame)
+     *
+     * @param message   AMQP message
+     * @return  instances of DeviceTemperature, null if the body type isn't supported
+     */
+    public static List<DeviceTemperature> fromMessage(Message message) {
+        Section section = message.getBody();
+        if (section instanceof AmqpValue) {
+            String value = ((AmqpValue) section).getValue().toString();
+            return value.trim().startsWith("[") ?
+                    fromJsonArray(new JsonArray(value)) :
+                    Collections.singletonList(fromJson(value));
+        } else if (section instanceof Data) {
+            Binary data = ((Data) section).getValue();
+            if (PayloadFormat.of(message.getContentType(), data.getArray(), data.getArrayOffset(), data.getLength()) == PayloadFormat.BINARY) {
+                return fromBinaryBatch(data.getArray(), data.getArrayOffset(), data.getLength());
+            }
+            return isJsonArray(data.getArray(), data.getArrayOffset(), data.getLength()) ?
+                    fromJsonArray(new JsonArray(new String(data.getArray(), data.getArrayOffset(), data.getLength(), StandardCharsets.UTF_8))) :
+                    Collections.singletonList(DeviceTemperatureDecoder.decode(data));
+        } else {
+            return null;
+        }
+    }
+
+    private static boolean isJsonArray(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (!Character.isWhitespace(data[i])) {
+                return data[i] == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return a DeviceTemperature instance from a compact binary frame
+     *
+     * @param data  bytes array with the frame
+     * @param offset    offset of the frame in the array
+     * @param length    length of the frame
+     * @return  instance of DeviceTemperature
+     */
+    public static DeviceTemperature fromBinary(byte[] data, int offset, int length) {
+        DeviceTemperature[] deviceTemperature = new DeviceTemperature[1];
+        long timestamp = BinaryCodec.timestamp(data, offset, length);
+        BinaryCodec.decodeTemperatures(data, offset, length,
+                (deviceId, temperature) -> deviceTemperature[0] = new DeviceTemperature(deviceId, temperature, timestamp));
+        return deviceTemperature[0];
+    }
+
+    /**
+     * Return the DeviceTemperature instances from a compact binary frame with one or more values,
+     * each one with the time it was read (from the series or telemetry frame) or the frame timestamp.
+     * The telemetry samples without a temperature value are skipped
+     *
+     * @param data  bytes array with the frame
+     * @param offset    offset of the frame in the array
+     * @param length    length of the frame
+     * @return  instances of DeviceTemperature
+     */
+    public static List<DeviceTemperature> fromBinaryBatch(byte[] data, int offset, int length) {
+        List<DeviceTemperature> deviceTemperatures = new ArrayList<>();
+        BinaryCodec.decodeTelemetry(data, offset, length, (deviceId, timestamp, values) -> {
+            Integer temperature = values.get(SensorMetric.TEMPERATURE);
+            if (temperature != null) {
+                Map<SensorMetric, Integer> metrics = null;
+                if (values.size() > 1) {
+                    metrics = new EnumMap<>(values);
+                    metrics.remove(SensorMetric.TEMPERATURE);
+                }
+                deviceTemperatures.add(new DeviceTemperature(deviceId, temperature, timestamp, metrics));
+            }
+        });
+        return deviceTemperatures;
+    }
+
+    /**
+     * Return the DeviceTemperature instances from a JSON array
+     *
+     * @param json  JSON array of objects
+     * @return  instances of DeviceTemperature
+     */
+    public static List<DeviceTemperature> fromJsonArray(JsonArray json) {
+        List<DeviceTemperature> deviceTemperatures = new ArrayList<>(json.size());
+        for (int i = 0; i < json.size(); i++) {
+            deviceTemperatures.add(fromJson(json.getJsonObject(i)));
+        }
+        return deviceTemperatures;
+    }
+
     /**
      * Return a DeviceTemperature instance from a JSON object
      *
@@ -82,8 +312,16 @@ public class DeviceTemperature implements Serializable {
      * @return  instance of DeviceTemperature
      */
     public static DeviceTemperature fromJson(JsonObject json) {
+        Map<SensorMetric, Integer> metrics = new EnumMap<>(SensorMetric.class);
+        for (SensorMetric metric : SensorMetric.values()) {
+            if (metric != SensorMetric.TEMPERATURE && json.containsKey(metric.jsonName())) {
+                metrics.put(metric, json.getInteger(metric.jsonName()));
+            }
+        }
         return new DeviceTemperature(json.getString(JSON_DEVICEID),
-                json.getInteger(JSON_TEMPERATURE));
+                json.getInteger(JSON_TEMPERATURE),
+                json.getLong(JSON_TIMESTAMP, 0L),
+                metrics);
     }
 
     /**
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot;
+
+import io.enmasse.iot.common.SensorMetric;
+import org.apache.qpid.proton.amqp.Binary;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Decoder for getting a DeviceTemperature instance straight from the bytes
+ * of a JSON message body, without building intermediate String and
+ * JSON objects. It handles the flat objects sent by the devices (with the
+ * values of the other sensors read along with the temperature) and falls
+ * back to the full JSON parsing for anything else (nested values, escapes, ...)
+ */
+public final class DeviceTemperatureDecoder {
+
+    private static final byte[] DEVICEID = DeviceTemperature.JSON_DEVICEID.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TEMPERATURE = DeviceTemperature.JSON_TEMPERATURE.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TIMESTAMP = DeviceTemperature.JSON_TIMESTAMP.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HUMIDITY = SensorMetric.HUMIDITY.jsonName().getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRESSURE = SensorMetric.PRESSURE.jsonName().getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    private String deviceId;
+    private int temperature;
+    private boolean hasTemperature;
+    private long timestamp;
+    private Map<SensorMetric, Integer> metrics;
+    private int value;
+
+    private DeviceTemperatureDecoder(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Return a DeviceTemperature instance from an AMQP binary body
+     *
+     * @param binary    AMQP binary with the JSON bytes
+     * @return  instance of DeviceTemperature
+     */
+    public static DeviceTemperature decode(Binary binary) {
+        return decode(binary.getArray(), binary.getArrayOffset(), binary.getLength());
+    }
+
+    /**
+     * Return a DeviceTemperature instance from a slice of a bytes array
+     *
+     * @param data  bytes array with the JSON bytes
+     * @param offset    offset of the JSON bytes in the array
+     * @param length    length of the JSON bytes
+     * @return  instance of DeviceTemperature
+     */
+    public static DeviceTemperature decode(byte[] data, int offset, int length) {
+        DeviceTemperatureDecoder decoder = new DeviceTemperatureDecoder(data, offset, length);
+        if (decoder.parse()) {
+            return new DeviceTemperature(decoder.deviceId, decoder.temperature, decoder.timestamp, decoder.metrics);
+        } else {
+            return DeviceTemperature.fromJson(new String(data, offset, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    private boolean parse() {
+
+        this.skipWhitespaces();
+        if (!this.consume('{')) {
+            return false;
+        }
+        this.skipWhitespaces();
+        if (this.consume('}')) {
+            return false;
+        }
+
+        do {
+            this.skipWhitespaces();
+            if (!this.consume('"')) {
+                return false;
+            }
+            int keyStart = this.pos;
+            if (!this.skipString()) {
+                return false;
+            }
+            int keyLength = this.pos - keyStart - 1;
+
+            this.skipWhitespaces();
+            if (!this.consume(':')) {
+                return false;
+            }
+            this.skipWhitespaces();
+
+            if (this.matches(keyStart, keyLength, DEVICEID)) {
+                if (!this.parseDeviceId()) {
+                    return false;
+                }
+            } else if (this.matches(keyStart, keyLength, TEMPERATURE)) {
+                if (!this.parseInt()) {
+                    return false;
+                }
+                this.temperature = this.value;
+                this.hasTemperature = true;
+            } else if (this.matches(keyStart, keyLength, HUMIDITY)) {
+                if (!this.parseMetric(SensorMetric.HUMIDITY)) {
+                    return false;
+                }
+            } else if (this.matches(keyStart, keyLength, PRESSURE)) {
+                if (!this.parseMetric(SensorMetric.PRESSURE)) {
+                    return false;
+                }
+            } else if (this.matches(keyStart, keyLength, TIMESTAMP)) {
+                if (!this.parseTimestamp()) {
+                    return false;
+                }
+            } else if (!this.skipScalar()) {
+                return false;
+            }
+
+            this.skipWhitespaces();
+        } while (this.consume(','));
+
+        return this.consume('}') && this.deviceId != null && this.hasTemperature;
+    }
+
+    private boolean parseDeviceId() {
+        if (!this.consume('"')) {
+            return false;
+        }
+        int start = this.pos;
+        if (!this.skipString()) {
+            return false;
+        }
+        this.deviceId = new String(this.data, start, this.pos - start - 1, StandardCharsets.UTF_8);
+        return true;
+    }
+
+    private boolean parseMetric(SensorMetric metric) {
+        if (!this.parseInt()) {
+            return false;
+        }
+        if (this.metrics == null) {
+            this.metrics = new EnumMap<>(SensorMetric.class);
+        }
+        this.metrics.put(metric, this.value);
+        return true;
+    }
+
+    private boolean parseInt() {
+        boolean negative = this.consume('-');
+        int start = this.pos;
+        long value = 0;
+        while (this.pos < this.end && this.data[this.pos] >= '0' && this.data[this.pos] <= '9') {
+            value = value * 10 + (this.data[this.pos++] - '0');
+            if (value > Integer.MAX_VALUE) {
+                return false;
+            }
+        }
+        // decimals and exponents are left to the JSON parser
+        if (this.pos == start || (this.pos < this.end && (this.data[this.pos] == '.' || this.data[this.pos] == 'e' || this.data[this.pos] == 'E'))) {
+            return false;
+        }
+        this.value = (int) (negative ? -value : value);
+        return true;
+    }
+
+    private boolean parseTimestamp() {
+        int start = this.pos;
+        long value = 0;
+        while (this.pos < this.end && this.data[this.pos] >= '0' && this.data[this.pos] <= '9') {
+            // ms since the epoch fit in far fewer digits than a long overflow
+            if (this.pos - start >= 18) {
+                return false;
+            }
+            value = value * 10 + (this.data[this.pos++] - '0');
+        }
+        // negative, decimals and exponents are left to the JSON parser
+        if (this.pos == start || (this.pos < this.end && (this.data[this.pos] == '.' || this.data[this.pos] == 'e' || this.data[this.pos] == 'E'))) {
+            return false;
+        }
+        this.timestamp = value;
+        return true;
+    }
+
+    /**
+     * Skip the string starting at the current position (after the opening quote),
+     * leaving the position after the closing quote. Escaped strings aren't handled
+     */
+    private boolean skipString() {
+        while (this.pos < this.end) {
+            byte b = this.data[this.pos++];
+            if (b == '"') {
+                return true;
+            } else if (b == '\\') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skip a string, number, boolean or null value, nested objects and arrays aren't handled
+     */
+    private boolean skipScalar() {
+        if (this.consume('"')) {
+            return this.skipString();
+        }
+        int start = this.pos;
+        while (this.pos < this.end) {
+            byte b = this.data[this.pos];
+            if (b == ',' || b == '}' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                break;
+            } else if (b == '{' || b == '[' || b == '"') {
+                return false;
+            }
+            this.pos++;
+        }
+        return this.pos > start;
+    }
+
+    private boolean matches(int start, int length, byte[] key) {
+        if (length != key.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (this.data[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean consume(char c) {
+        if (this.pos < this.end && this.data[this.pos] == c) {
+            this.pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespaces() {
+        while (this.pos < this.end) {
+            byte b = this.data[this.pos];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                break;
+            }
+            this.pos++;
+        }
+    }
+}
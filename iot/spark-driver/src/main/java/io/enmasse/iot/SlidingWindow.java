@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Sliding window over the per batch aggregations of a device values.
+ *
+ * The window is a queue made of two stacks : new panes are pushed on the back
+ * stack keeping a running aggregation, while expired panes are popped from
+ * the front stack where every pane brings the aggregation of itself and all
+ * the newer panes in the same stack. When the front stack is empty, the back
+ * one is flipped on it. Adding and evicting panes and getting the window
+ * aggregation have O(1) amortized cost, without any inverse function.
+ * The window of a device without new values can be read at any time without
+ * evicting its panes, which costs O(panes) only when some of them are expired.
+ */
+public class SlidingWindow implements Serializable {
+
+    private final long windowDuration;
+
+    private final Deque<Pane> front = new ArrayDeque<>();
+    private final Deque<Pane> back = new ArrayDeque<>();
+    private Aggregate backAggregate;
+
+    /**
+     * Constructor
+     *
+     * @param windowDuration    window duration (ms)
+     */
+    public SlidingWindow(long windowDuration) {
+        this.windowDuration = windowDuration;
+    }
+
+    /**
+     * Add the aggregation of the values received at the provided time
+     *
+     * @param time  time of the values (ms)
+     * @param aggregate aggregation of the values
+     */
+    public void add(long time, Aggregate aggregate) {
+        this.back.addLast(new Pane(time, aggregate, null));
+        this.backAggregate = this.backAggregate == null ? aggregate : this.backAggregate.combine(aggregate);
+    }
+
+    /**
+     * Evict the values which are out of the window ending at the provided time
+     *
+     * @param time  window end time (ms)
+     */
+    public void evict(long time) {
+        long start = time - this.windowDuration;
+        while (!this.isEmpty()) {
+            if (this.front.isEmpty()) {
+                this.flip();
+            }
+            if (this.front.peekFirst().time > start) {
+                break;
+            }
+            this.front.pollFirst();
+        }
+    }
+
+    /**
+     * @return  aggregation of all the values in the window
+     */
+    public Aggregate aggregate() {
+        if (this.front.isEmpty()) {
+            return this.backAggregate;
+        } else if (this.backAggregate == null) {
+            return this.front.peekFirst().aggregate;
+        } else {
+            return this.front.peekFirst().aggregate.combine(this.backAggregate);
+        }
+    }
+
+    /**
+     * Return the aggregation of the values in the window ending at the provided
+     * time, without evicting the expired ones
+     *
+     * @param time  window end time (ms)
+     * @return  aggregation of the values in the window, null if there are none
+     */
+    public Aggregate aggregate(long time) {
+        long start = time - this.windowDuration;
+        Pane oldest = !this.front.isEmpty() ? this.front.peekFirst() : this.back.peekFirst();
+        if (oldest == null || oldest.time > start) {
+            return this.isEmpty() ? null : this.aggregate();
+        }
+
+        // the device didn't send since some panes expired, they are skipped from the oldest one
+        for (Pane pane : this.front) {
+            if (pane.time > start) {
+                // the front pane aggregation includes all the newer front panes
+                return this.backAggregate == null ? pane.aggregate : pane.aggregate.combine(this.backAggregate);
+            }
+        }
+        Aggregate aggregate = null;
+        for (Pane pane : this.back) {
+            if (pane.time > start) {
+                aggregate = aggregate == null ? pane.value : aggregate.combine(pane.value);
+            }
+        }
+        return aggregate;
+    }
+
+    /**
+     * @return  if there are no values in the window
+     */
+    public boolean isEmpty() {
+        return this.front.isEmpty() && this.back.isEmpty();
+    }
+
+    private void flip() {
+        // the newest pane ends at the bottom of the front stack, the oldest at the top
+        Aggregate aggregate = null;
+        while (!this.back.isEmpty()) {
+            Pane pane = this.back.pollLast();
+            aggregate = aggregate == null ? pane.value : pane.value.combine(aggregate);
+            this.front.addFirst(new Pane(pane.time, pane.value, aggregate));
+        }
+        this.backAggregate = null;
+    }
+
+    // package visible for the Kryo registration
+    static class Pane implements Serializable {
+
+        private final long time;
+        private final Aggregate value;
+        private final Aggregate aggregate;
+
+        Pane(long time, Aggregate value, Aggregate aggregate) {
+            this.time = time;
+            this.value = value;
+            this.aggregate = aggregate;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.streaming.DataStreamReader;
+import org.apache.spark.sql.streaming.OutputMode;
+import org.apache.spark.sql.streaming.StreamingQuery;
+import org.apache.spark.sql.streaming.StreamingQueryException;
+import org.apache.spark.sql.streaming.StreamingQueryListener;
+import org.apache.spark.sql.streaming.Trigger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spark driver running the same analysis of {@link TemperatureAnalyzer} on the
+ * Structured Streaming API : the values are aggregated per device in event time
+ * windows (the sensor reading time), with a watermark bounding how late they can
+ * be received, and each window result is published once, when the watermark passes
+ * its end. It's selected by setting STREAMING_API=structured, sharing the other
+ * environment variables with the DStream driver, plus :
+ * <ul>
+ *     <li>WATERMARK_DELAY : max delay (ms) of a value for being counted in its window (default 1000)</li>
+ *     <li>SOURCE_CREDITS : max number of messages received and not handed to a micro-batch yet (default 10000)</li>
+ * </ul>
+ */
+public class StructuredTemperatureAnalyzer {
+
+    private static final Logger log = LoggerFactory.getLogger(StructuredTemperatureAnalyzer.class);
+
+    private static final String APP_NAME = "StructuredTemperatureAnalyzer";
+    private static final long TRIGGER_INTERVAL = 1000;
+
+    private static final String CHECKPOINT_DIR = "/tmp/spark-structured-amqp";
+
+    static void run() throws StreamingQueryException {
+
+        // the source attaches a single receiver link
+        if (TemperatureAnalyzer.temperaturePartitions > 1) {
+            throw new IllegalArgumentException("Partitioned temperature addresses are supported only by the DStream API");
+        }
+
+        long watermarkDelay = 1000;
+        String watermarkDelayEnv = System.getenv("WATERMARK_DELAY");
+        if (watermarkDelayEnv != null) {
+            watermarkDelay = Long.valueOf(watermarkDelayEnv);
+        }
+        String sourceCredits = System.getenv("SOURCE_CREDITS");
+        log.info("Structured Streaming, watermark delay {} ms", watermarkDelay);
+
+        SparkSession spark = SparkSession.builder()
+                .appName(APP_NAME)
+                .config(AnalyzerKryoRegistrator.configure(new SparkConf()))
+                .getOrCreate();
+
+        DataStreamReader reader = spark.readStream()
+                .format(AmqpSourceProvider.class.getName())
+                .option("host", TemperatureAnalyzer.host)
+                .option("port", TemperatureAnalyzer.port)
+                .option("address", TemperatureAnalyzer.temperatureAddress);
+        if (TemperatureAnalyzer.username != null) {
+            reader.option("username", TemperatureAnalyzer.username)
+                    .option("password", TemperatureAnalyzer.password);
+        }
+        if (sourceCredits != null) {
+            reader.option("credits", sourceCredits);
+        }
+        if (TemperatureAnalyzer.latencyLog != null) {
+            reader.option("latencyLog", TemperatureAnalyzer.latencyLog);
+        }
+        Dataset<Row> temperatures = reader.load();
+
+        Column value;
+        switch (TemperatureAnalyzer.windowFunction) {
+            case MIN:
+                value = functions.min(functions.col("temperature"));
+                break;
+            case AVG:
+                value = functions.round(functions.avg(functions.col("temperature"))).cast("int");
+                break;
+            default:
+                value = functions.max(functions.col("temperature"));
+                break;
+        }
+
+        // the results carry the time of the newest reading in the window, for tracing the latency up to the thermostat
+        Dataset<Row> results = temperatures
+                .withWatermark("timestamp", watermarkDelay + " milliseconds")
+                .groupBy(functions.window(functions.col("timestamp"),
+                        TemperatureAnalyzer.windowDuration + " milliseconds",
+                        TemperatureAnalyzer.slideDuration + " milliseconds"),
+                        functions.col("device_id"))
+                .agg(value.as("temperature"), functions.max(functions.col("timestamp")).as("timestamp"))
+                .select(functions.col("device_id"), functions.col("temperature"), functions.col("timestamp"));
+
+        spark.streams().addListener(new StreamingQueryListener() {
+
+            @Override
+            public void onQueryStarted(QueryStartedEvent event) {
+                log.info("Query {} started", event.id());
+            }
+
+            @Override
+            public void onQueryProgress(QueryProgressEvent event) {
+                Long duration = event.progress().durationMs().get("triggerExecution");
+                if (duration != null) {
+                    TemperatureAnalyzer.batchProcessing.record(duration, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            @Override
+            public void onQueryTerminated(QueryTerminatedEvent event) {
+                log.warn("Query {} terminated", event.id());
+            }
+        });
+
+        StreamingQuery query = results.writeStream()
+                .outputMode(OutputMode.Append())
+                .trigger(Trigger.ProcessingTime(TRIGGER_INTERVAL))
+                .option("checkpointLocation", CHECKPOINT_DIR)
+                .foreach(new AmqpForeachWriter(TemperatureAnalyzer.host, TemperatureAnalyzer.port,
+                        TemperatureAnalyzer.username, TemperatureAnalyzer.password,
+                        TemperatureAnalyzer.maxAddress, TemperatureAnalyzer.maxPartitions,
+                        TemperatureAnalyzer.maxBatchSize, TemperatureAnalyzer.maxSendWindow,
+                        TemperatureAnalyzer.maxPayloadFormat))
+                .start();
+
+        log.info("Started");
+        query.awaitTermination();
+        log.warn("Terminated!!");
+    }
+}
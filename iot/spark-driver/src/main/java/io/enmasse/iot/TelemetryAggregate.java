@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.enmasse.iot;
+
+import io.enmasse.iot.common.PayloadFormat;
+import io.enmasse.iot.common.SensorMetric;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.proton.ProtonHelper;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.message.Message;
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per metric partial aggregations of the values of all the sensors of a device,
+ * built in a single pass over its samples, keeping the time of the newest one
+ */
+public class TelemetryAggregate implements Serializable {
+
+    private final Map<SensorMetric, Aggregate> aggregates;
+    private final long timestamp;
+
+    /**
+     * Constructor
+     *
+     * @param aggregates    aggregation of the values of every metric
+     * @param timestamp time of the newest sample (ms since the epoch), 0 if unknown
+     */
+    public TelemetryAggregate(Map<SensorMetric, Aggregate> aggregates, long timestamp) {
+        this.aggregates = aggregates;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Return the aggregation of a single device sample
+     *
+     * @param deviceTemperature sample to aggregate, with the temperature and the other sensors values
+     * @return  instance of TelemetryAggregate
+     */
+    public static TelemetryAggregate of(DeviceTemperature deviceTemperature) {
+        Map<SensorMetric, Aggregate> aggregates = new EnumMap<>(SensorMetric.class);
+        aggregates.put(SensorMetric.TEMPERATURE, Aggregate.of(deviceTemperature.temperature()));
+        for (Map.Entry<SensorMetric, Integer> metric : deviceTemperature.metrics().entrySet()) {
+            aggregates.put(metric.getKey(), Aggregate.of(metric.getValue()));
+        }
+        return new TelemetryAggregate(aggregates, deviceTemperature.timestamp());
+    }
+
+    /**
+     * Combine the current aggregation with another one, metric by metric
+     *
+     * @param other other aggregation
+     * @return  aggregation of the values in both
+     */
+    public TelemetryAggregate combine(TelemetryAggregate other) {
+        Map<SensorMetric, Aggregate> aggregates = new EnumMap<>(SensorMetric.class);
+        aggregates.putAll(this.aggregates);
+        for (Map.Entry<SensorMetric, Aggregate> aggregate : other.aggregates.entrySet()) {
+            aggregates.merge(aggregate.getKey(), aggregate.getValue(), Aggregate::combine);
+        }
+        return new TelemetryAggregate(aggregates, Math.max(this.timestamp, other.timestamp));
+    }
+
+    /**
+     * @return  aggregation of the values of every metric
+     */
+    public Map<SensorMetric, Aggregate> aggregates() {
+        return this.aggregates;
+    }
+
+    /**
+     * @return  time of the newest aggregated sample (ms since the epoch), 0 if unknown
+     */
+    public long timestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Convert current instance in a JSON object, with count, min, max and average of every metric
+     *
+     * @param deviceId  device the aggregated samples come from
+     * @return  JSON object representation
+     */
+    public JsonObject toJson(String deviceId) {
+        JsonObject json = new JsonObject();
+        json.put(DeviceTemperature.JSON_DEVICEID, deviceId);
+        if (this.timestamp > 0) {
+            json.put(DeviceTemperature.JSON_TIMESTAMP, this.timestamp);
+        }
+        for (Map.Entry<SensorMetric, Aggregate> aggregate : this.aggregates.entrySet()) {
+            json.put(aggregate.getKey().jsonName(), new JsonObject()
+                    .put("count", aggregate.getValue().count())
+                    .put("min", aggregate.getValue().min())
+                    .put("max", aggregate.getValue().max())
+                    .put("avg", aggregate.getValue().avg()));
+        }
+        return json;
+    }
+
+    /**
+     * Convert a list of devices aggregations in an AMQP message with a JSON payload :
+     * a single aggregation keeps the plain object, more are packed in an array
+     *
+     * @param aggregates    pairs with key = device-id, value = TelemetryAggregate
+     * @return  AMQP message
+     */
+    public static Message toMessage(List<Tuple2<String, TelemetryAggregate>> aggregates) {
+        byte[] payload;
+        if (aggregates.size() == 1) {
+            payload = aggregates.get(0)._2().toJson(aggregates.get(0)._1()).toBuffer().getBytes();
+        } else {
+            JsonArray json = new JsonArray();
+            for (Tuple2<String, TelemetryAggregate> aggregate : aggregates) {
+                json.add(aggregate._2().toJson(aggregate._1()));
+            }
+            payload = json.toBuffer().getBytes();
+        }
+
+        Message message = ProtonHelper.message();
+        message.setContentType(PayloadFormat.JSON.contentType());
+        message.setBody(new Data(new Binary(payload)));
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "TelemetryAggregate(aggregates=" +
+                this.aggregates + ",timestamp=" +
+                this.timestamp + ")";
+    }
+}
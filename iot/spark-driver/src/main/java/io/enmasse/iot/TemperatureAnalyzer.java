@@ -16,21 +16,27 @@
 
 package io.enmasse.iot;
 
+import io.enmasse.iot.common.DevicePartitions;
+import io.enmasse.iot.common.LatencyTracker;
+import io.enmasse.iot.common.MetricsServer;
+import io.enmasse.iot.common.PayloadFormat;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import io.vertx.core.Vertx;
-import io.vertx.proton.ProtonClient;
-import io.vertx.proton.ProtonConnection;
-import io.vertx.proton.ProtonHelper;
-import io.vertx.proton.ProtonSender;
-import org.apache.qpid.proton.amqp.Binary;
-import org.apache.qpid.proton.amqp.messaging.AmqpValue;
-import org.apache.qpid.proton.amqp.messaging.Data;
-import org.apache.qpid.proton.amqp.messaging.Section;
-import org.apache.qpid.proton.message.Message;
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.SparkConf;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.Optional;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.streaming.StreamingQueryException;
 import org.apache.spark.storage.StorageLevel;
 import org.apache.spark.streaming.Duration;
+import org.apache.spark.streaming.State;
+import org.apache.spark.streaming.StateSpec;
+import org.apache.spark.streaming.Time;
 import org.apache.spark.streaming.amqp.AMQPUtils;
+import org.apache.spark.streaming.api.java.JavaDStream;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaReceiverInputDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
@@ -40,10 +46,15 @@ import scala.Option;
 import scala.Some;
 import scala.Tuple2;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Sample Spark driver for getting temperature values from sensor
  * analyzing them in real team as a stream providing max value in
- * the latest 5 secs
+ * the latest 5 secs (or max, min or average on a configurable sliding window)
  */
 public class TemperatureAnalyzer {
 
@@ -54,14 +65,35 @@ public class TemperatureAnalyzer {
 
     private static final String CHECKPOINT_DIR = "/tmp/spark-streaming-amqp";
 
-    private static String host = "localhost";
-    private static int port = 5672;
-    private static String username = null;
-    private static String password = null;
-    private static String temperatureAddress = "temperature";
-    private static String maxAddress = "max";
-
-    public static void main(String[] args) throws InterruptedException {
+    // recorded on the driver, where the output operation of every batch is run
+    static final Timer batchProcessing = Timer.builder("iot.analyzer.batch.processing")
+            .description("Time for processing a batch and sending its max values")
+            .register(Metrics.globalRegistry);
+    // from the device sending the value, and from the sensor reading, to the value received (on the executors)
+    static final LatencyTracker hopLatency = LatencyTracker.of("analyzer.hop");
+    static final LatencyTracker totalLatency = LatencyTracker.of("analyzer.total");
+
+    // configuration, shared with the Structured Streaming driver
+    static String host = "localhost";
+    static int port = 5672;
+    static String username = null;
+    static String password = null;
+    static String temperatureAddress = "temperature";
+    static int temperaturePartitions = 1;
+    static int temperatureReceivers = 1;
+    static int processingPartitions = 0;
+    static String maxAddress = "max";
+    static long windowDuration = 5000;
+    static long slideDuration = 5000;
+    static WindowFunction windowFunction = WindowFunction.MAX;
+    static int maxBatchSize = 1;
+    static int maxSendWindow = 1000;
+    static PayloadFormat maxPayloadFormat = PayloadFormat.JSON;
+    static int maxPartitions = 1;
+    static String telemetryAddress = null;
+    static String latencyLog = null;
+
+    public static void main(String[] args) throws InterruptedException, StreamingQueryException {
 
         // getting AMQP messaging service connection information
         String messagingServiceHost = System.getenv("MESSAGING_SERVICE_HOST");
@@ -79,6 +111,69 @@ public class TemperatureAnalyzer {
         password = System.getenv("MESSAGING_PASSWORD");
         log.info("Credentials {}/{}", username, password);
 
+        // getting how values are received (from how many addresses, with how many receivers) and processed in parallel
+        String temperaturePartitionsEnv = System.getenv("TEMPERATURE_PARTITIONS");
+        if (temperaturePartitionsEnv != null) {
+            temperaturePartitions = Integer.valueOf(temperaturePartitionsEnv);
+        }
+        String temperatureReceiversEnv = System.getenv("TEMPERATURE_RECEIVERS");
+        temperatureReceivers = temperatureReceiversEnv != null ? Integer.valueOf(temperatureReceiversEnv) : temperaturePartitions;
+        String processingPartitionsEnv = System.getenv("PROCESSING_PARTITIONS");
+        if (processingPartitionsEnv != null) {
+            processingPartitions = Integer.valueOf(processingPartitionsEnv);
+        }
+        log.info("Temperature partitions {}, receivers {}, processing partitions {}", temperaturePartitions, temperatureReceivers, processingPartitions);
+
+        // getting the window on which values are aggregated
+        String windowDurationEnv = System.getenv("WINDOW_DURATION");
+        if (windowDurationEnv != null) {
+            windowDuration = Long.valueOf(windowDurationEnv);
+        }
+        String slideDurationEnv = System.getenv("SLIDE_DURATION");
+        if (slideDurationEnv != null) {
+            slideDuration = Long.valueOf(slideDurationEnv);
+        }
+        String windowFunctionEnv = System.getenv("WINDOW_FUNCTION");
+        if (windowFunctionEnv != null) {
+            windowFunction = WindowFunction.valueOf(windowFunctionEnv.toUpperCase());
+        }
+        log.info("Window {} ms, slide {} ms, function {}", windowDuration, slideDuration, windowFunction);
+
+        // getting how max values are published (how many per message and in flight)
+        String maxBatchSizeEnv = System.getenv("MAX_BATCH_SIZE");
+        if (maxBatchSizeEnv != null) {
+            maxBatchSize = Integer.valueOf(maxBatchSizeEnv);
+        }
+        String maxSendWindowEnv = System.getenv("MAX_SEND_WINDOW");
+        if (maxSendWindowEnv != null) {
+            maxSendWindow = Integer.valueOf(maxSendWindowEnv);
+        }
+        maxPayloadFormat = PayloadFormat.fromConfig(System.getenv("MAX_PAYLOAD_FORMAT"));
+        String maxPartitionsEnv = System.getenv("MAX_PARTITIONS");
+        if (maxPartitionsEnv != null) {
+            maxPartitions = Integer.valueOf(maxPartitionsEnv);
+        }
+        log.info("Max values batch size {}, send window {}, format {}, partitions {}", maxBatchSize, maxSendWindow, maxPayloadFormat, maxPartitions);
+
+        // getting where the aggregations of all the sensors values are published, if any
+        telemetryAddress = System.getenv("TELEMETRY_ADDRESS");
+        log.info("Telemetry aggregations address {}", telemetryAddress);
+
+        // exposing the driver metrics, the executors don't report any
+        String metricsPortEnv = System.getenv("METRICS_PORT");
+        if (metricsPortEnv != null) {
+            MetricsServer.start(Vertx.vertx(), Integer.valueOf(metricsPortEnv));
+        }
+
+        // latencies are recorded by the executors receiving the values, each one writing its own log
+        latencyLog = System.getenv("LATENCY_LOG");
+
+        // the same analysis can run on the Structured Streaming API instead of the DStream one
+        if ("structured".equalsIgnoreCase(System.getenv("STREAMING_API"))) {
+            StructuredTemperatureAnalyzer.run();
+            return;
+        }
+
         JavaStreamingContext ssc = JavaStreamingContext.getOrCreate(CHECKPOINT_DIR, TemperatureAnalyzer::createStreamingContext);
 
         ssc.start();
@@ -93,46 +188,115 @@ public class TemperatureAnalyzer {
         log.info("appName = {}", APP_NAME);
         //conf.setMaster("local[2]");
         conf.set("spark.streaming.receiver.writeAheadLog.enable", "true");
+        AnalyzerKryoRegistrator.configure(conf);
 
         JavaStreamingContext ssc = new JavaStreamingContext(conf, BATCH_DURATION);
         ssc.checkpoint(CHECKPOINT_DIR);
 
-        JavaReceiverInputDStream<DeviceTemperature> receiveStream =
-                AMQPUtils.createStream(ssc, host, port,
-                        Option.apply(username), Option.apply(password), temperatureAddress,
-                        message -> {
-                            log.info("Got message from sensor ");
-
-                            Section section = message.getBody();
-                            if (section instanceof AmqpValue) {
-                                Object value = ((AmqpValue) section).getValue();
-                                DeviceTemperature deviceTemperature = DeviceTemperature.fromJson(value.toString());
-                                return new Some<>(deviceTemperature);
-                            } else if (section instanceof Data) {
-                                Binary data = ((Data)section).getValue();
-                                DeviceTemperature deviceTemperature = DeviceTemperature.fromJson(new String(data.getArray(), "UTF-8"));
-                                return new Some<>(deviceTemperature);
-                            } else {
-                                return null;
-                            }
-
-                        }, StorageLevel.MEMORY_ONLY());
+        String executorLatencyLog = latencyLog;
+
+        // each receiver takes an executor core, attaching to a partitioned temperature address
+        // (more receivers on the same address share its messages as competing consumers);
+        // a message can carry a batch of values read by the device, they are expanded in the single values below
+        JavaDStream<List<DeviceTemperature>> receiveStream = null;
+        for (int i = 0; i < temperatureReceivers; i++) {
+
+            String address = DevicePartitions.address(temperatureAddress, i % temperaturePartitions, temperaturePartitions);
+            JavaReceiverInputDStream<List<DeviceTemperature>> receiverStream =
+                    AMQPUtils.createStream(ssc, host, port,
+                            Option.apply(username), Option.apply(password), address,
+                            message -> {
+                                log.debug("Got message from sensor");
+
+                                List<DeviceTemperature> deviceTemperatures = DeviceTemperature.fromMessage(message);
+                                if (deviceTemperatures == null) {
+                                    return null;
+                                }
+
+                                // opened once per executor JVM by the first message, just a volatile read afterwards
+                                LatencyTracker.open(executorLatencyLog);
+                                hopLatency.record(message.getCreationTime());
+                                for (DeviceTemperature deviceTemperature : deviceTemperatures) {
+                                    totalLatency.record(deviceTemperature.timestamp());
+                                }
+                                return new Some<>(deviceTemperatures);
+
+                            }, StorageLevel.MEMORY_ONLY());
+
+            receiveStream = receiveStream == null ? receiverStream : receiveStream.union(receiverStream);
+        }
 
-        // from a stream with DeviceTemperature instace to a pair stream with key = device-id, value = temperature
-        JavaPairDStream<String, Integer> temperaturesByDevice = receiveStream.mapToPair(deviceTemperature -> {
-            return new Tuple2<>(deviceTemperature.deviceId(), deviceTemperature.temperature());
+        // the aggregations are keyed by the device index in the dictionary instead of the device-id,
+        // so that the shuffles and the window state carry a compact int for every device
+        HashPartitioner partitioner = new HashPartitioner(processingPartitions > 0 ?
+                processingPartitions : ssc.sparkContext().defaultParallelism());
+
+        // from a stream with DeviceTemperature instace to a pair stream with key = device index, value = DeviceTemperature;
+        // the devices not in the dictionary yet are reported while keying the values, without a job of their own,
+        // and added to it on the next batch, so their values are processed from the batch after the one they are first seen in
+        JavaPairDStream<Integer, DeviceTemperature> temperaturesByDevice = receiveStream.flatMap(List::iterator).transformToPair(rdd -> {
+            DeviceDictionary dictionary = DeviceDictionary.get(rdd.context(), CHECKPOINT_DIR);
+            DeviceDictionary.Snapshot deviceIds = dictionary.extend();
+            DeviceDictionary.UnknownIds unknown = dictionary.unknown();
+            return rdd.flatMapToPair(deviceTemperature -> {
+                int index = deviceIds.index(deviceTemperature.deviceId());
+                if (index < 0) {
+                    unknown.add(deviceTemperature.deviceId());
+                    return Collections.<Tuple2<Integer, DeviceTemperature>>emptyIterator();
+                }
+                return Collections.singletonList(new Tuple2<>(index, deviceTemperature)).iterator();
+            });
         });
 
-        // reducing the pair stream by key (device-id) for getting max temperature value
-        JavaPairDStream<String, Integer> max = temperaturesByDevice.reduceByKeyAndWindow(
-                (a,b) -> {
+        // the max values carry the time of the newest reading in the window, for tracing the latency up to the thermostat
+        JavaPairDStream<Integer, Aggregate> max;
+        if (windowDuration == slideDuration && windowFunction == WindowFunction.MAX) {
+
+            // reducing the pair stream by key (device index) for getting max temperature value
+            max = temperaturesByDevice
+                    .mapValues(Aggregate::of)
+                    .reduceByKeyAndWindow(Aggregate::combine, new Duration(windowDuration), new Duration(slideDuration), partitioner);
+
+        } else {
+
+            // aggregating each batch by key (device index) and ingesting only the new aggregations in the per device sliding window;
+            // the state is updated only for the devices with new values, a device is forgotten after a window without values
+            long window = windowDuration;
+            long slide = slideDuration;
+
+            StateSpec<Integer, Aggregate, SlidingWindow, Void> spec =
+                    StateSpec.function((Time time, Integer deviceIndex, Optional<Aggregate> aggregate, State<SlidingWindow> state) -> {
+
+                        if (!state.isTimingOut()) {
 
-                    if (a > b)
-                        return a;
-                    else
-                        return b;
+                            SlidingWindow slidingWindow = state.exists() ? state.get() : new SlidingWindow(window);
+                            slidingWindow.add(time.milliseconds(), aggregate.get());
+                            slidingWindow.evict(time.milliseconds());
+                            state.update(slidingWindow);
+                        }
+                        return Optional.<Void>empty();
 
-                }, new Duration(5000), new Duration(5000));
+                    }).timeout(new Duration(window)).partitioner(partitioner);
+
+            // the windows of all the devices, even the ones without new values, are emitted on the slide boundaries
+            // (batch time multiple of the slide duration) as the tumbling windows above, leaving out the expired values
+            max = temperaturesByDevice
+                    .mapValues(Aggregate::of)
+                    .reduceByKey(Aggregate::combine, partitioner)
+                    .mapWithState(spec)
+                    .stateSnapshots()
+                    .transformToPair((rdd, time) -> {
+
+                        long end = time.milliseconds();
+                        boolean boundary = end % slide == 0;
+                        return rdd.flatMapToPair(record -> {
+
+                            Aggregate windowAggregate = boundary ? record._2().aggregate(end) : null;
+                            return windowAggregate == null ? Collections.<Tuple2<Integer, Aggregate>>emptyIterator() :
+                                    Collections.singletonList(new Tuple2<>(record._1(), windowAggregate)).iterator();
+                        });
+                    });
+        }
 
         //max.print();
 
@@ -140,55 +304,74 @@ public class TemperatureAnalyzer {
         Broadcast<Integer> messagingPort = ssc.sparkContext().broadcast(port);
         Broadcast<String> driverUsername = ssc.sparkContext().broadcast(username);
         Broadcast<String> driverPassword = ssc.sparkContext().broadcast(password);
+        int batchSize = maxBatchSize;
+        int sendWindow = maxSendWindow;
+        PayloadFormat payloadFormat = maxPayloadFormat;
+        int partitions = maxPartitions;
+        WindowFunction function = windowFunction;
 
         max.foreachRDD(rdd -> {
 
-            rdd.foreach(record -> {
-
-                // building a DeviceTemperature instance from the pair key = device-id, value = temperature
-                DeviceTemperature deviceTemperature = new DeviceTemperature(record._1(), record._2());
-
-                Vertx vertx = Vertx.vertx();
-                ProtonClient client = ProtonClient.create(vertx);
-
-                log.info("Connecting to messaging ...");
-                client.connect(messagingHost.value(), messagingPort.value(),
-                        driverUsername.value(), driverPassword.value(), done -> {
+            long start = System.nanoTime();
+            // back to the device-id only here, on the few values published in the window
+            DeviceDictionary.Snapshot deviceIds = DeviceDictionary.get(rdd.context(), CHECKPOINT_DIR).current();
+            JavaPairRDD<String, DeviceTemperature> values = rdd.mapToPair(record -> {
+                String deviceId = deviceIds.id(record._1());
+                Aggregate aggregate = record._2();
+                return new Tuple2<>(deviceId, new DeviceTemperature(deviceId, function.apply(aggregate), aggregate.timestamp()));
+            });
+            // with partitioned max addresses, each RDD partition holds the devices of the same address partition
+            JavaPairRDD<String, DeviceTemperature> partitioned = partitions > 1 ? values.partitionBy(new DevicePartitioner(partitions)) : values;
 
-                            if (done.succeeded()) {
+            partitioned.foreachPartition(records -> {
 
-                                log.info("... connected to {}:{}", messagingHost.value(), messagingPort.getValue());
+                if (!records.hasNext()) {
+                    return;
+                }
 
-                                ProtonConnection connection = done.result();
-                                connection.open();
+                // all the partition's records go through the executor wide pooled sender
+                AmqpSender maxSender = AmqpSender.get(messagingHost.value(), messagingPort.value(),
+                        driverUsername.value(), driverPassword.value(),
+                        DevicePartitions.address(maxAddress, TaskContext.getPartitionId(), partitions));
 
-                                ProtonSender maxSender = connection.createSender(maxAddress);
-                                maxSender.open();
+                maxSender.send(records, batchSize, sendWindow, batch -> {
 
-                                Message message = ProtonHelper.message();
-                                message.setAddress(maxAddress);
-                                message.setBody(new Data(new Binary(deviceTemperature.toJson().toString().getBytes())));
+                    // getting the DeviceTemperature instances from the pairs key = device-id, value = DeviceTemperature
+                    List<DeviceTemperature> deviceTemperatures = new ArrayList<>(batch.size());
+                    for (Tuple2<String, DeviceTemperature> record : batch) {
+                        deviceTemperatures.add(record._2());
+                    }
+                    return DeviceTemperature.toMessage(deviceTemperatures, payloadFormat);
+                });
+            });
 
-                                log.info("Sending {} to max address ...", deviceTemperature);
-                                maxSender.send(message, maxDelivery -> {
+            batchProcessing.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        });
 
-                                    log.info("... message sent");
-                                    maxSender.close();
+        // count, min, max and average of every sensor metric in the same window, aggregated in a single pass
+        if (telemetryAddress != null) {
 
-                                    connection.close();
-                                    vertx.close();
+            String address = telemetryAddress;
 
-                                });
+            temperaturesByDevice
+                    .mapValues(TelemetryAggregate::of)
+                    .reduceByKeyAndWindow(TelemetryAggregate::combine, new Duration(windowDuration), new Duration(slideDuration), partitioner)
+                    .foreachRDD(rdd -> {
 
-                            } else {
+                        DeviceDictionary.Snapshot deviceIds = DeviceDictionary.get(rdd.context(), CHECKPOINT_DIR).current();
+                        rdd.mapToPair(record -> new Tuple2<>(deviceIds.id(record._1()), record._2())).foreachPartition(records -> {
 
-                                log.error("Error on AMQP connection for sending", done.cause());
-                                vertx.close();
+                            if (!records.hasNext()) {
+                                return;
                             }
 
+                            AmqpSender telemetrySender = AmqpSender.get(messagingHost.value(), messagingPort.value(),
+                                    driverUsername.value(), driverPassword.value(), address);
+
+                            telemetrySender.send(records, batchSize, sendWindow, TelemetryAggregate::toMessage);
                         });
-            });
-        });
+                    });
+        }
 
         return ssc;
     }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot;
+
+/**
+ * Function applied to the values in a window
+ */
+public enum WindowFunction {
+
+    MAX,
+    MIN,
+    AVG;
+
+    /**
+     * Return the function result from the aggregation of the window values
+     *
+     * @param aggregate aggregation of the window values
+     * @return  function result
+     */
+    public int apply(Aggregate aggregate) {
+        switch (this) {
+            case MIN:
+                return aggregate.min();
+            case AVG:
+                return aggregate.avg();
+            default:
+                return aggregate.max();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.controller.thermostat;
+
+/**
+ * Open addressing map from device id to the last command sent to it, kept as
+ * a state byte and a timestamp in primitive arrays (no entry objects, no boxing)
+ */
+public class CommandStateMap {
+
+    public static final byte NONE = 0;
+    public static final byte OPEN = 1;
+    public static final byte CLOSE = 2;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private String[] keys;
+    private byte[] states;
+    private long[] timestamps;
+    private int size;
+
+    /**
+     * Constructor
+     *
+     * @param expectedSize  expected number of devices
+     */
+    public CommandStateMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        this.keys = new String[capacity];
+        this.states = new byte[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    /**
+     * Return the last command sent to a device
+     *
+     * @param deviceId  device identifier
+     * @return  last command, NONE if no commands were sent
+     */
+    public byte state(String deviceId) {
+        int index = this.indexOf(deviceId);
+        return this.keys[index] == null ? NONE : this.states[index];
+    }
+
+    /**
+     * Return when the last command was sent to a device
+     *
+     * @param deviceId  device identifier
+     * @return  last command timestamp, 0 if no commands were sent
+     */
+    public long timestamp(String deviceId) {
+        int index = this.indexOf(deviceId);
+        return this.keys[index] == null ? 0 : this.timestamps[index];
+    }
+
+    /**
+     * Store the last command sent to a device
+     *
+     * @param deviceId  device identifier
+     * @param state last command
+     * @param timestamp when the last command was sent
+     */
+    public void put(String deviceId, byte state, long timestamp) {
+        int index = this.indexOf(deviceId);
+        if (this.keys[index] == null) {
+            if (this.size + 1 > this.keys.length * LOAD_FACTOR) {
+                this.resize();
+                index = this.indexOf(deviceId);
+            }
+            this.keys[index] = deviceId;
+            this.size++;
+        }
+        this.states[index] = state;
+        this.timestamps[index] = timestamp;
+    }
+
+    /**
+     * Remove the devices with the last command sent before the provided time
+     *
+     * @param before    time before which the commands are expired
+     * @return  number of devices removed
+     */
+    public int evict(long before) {
+        String[] oldKeys = this.keys;
+        byte[] oldStates = this.states;
+        long[] oldTimestamps = this.timestamps;
+        int oldSize = this.size;
+
+        // rebuilt with the same capacity, linear probing doesn't allow removing in place
+        this.keys = new String[oldKeys.length];
+        this.states = new byte[oldKeys.length];
+        this.timestamps = new long[oldKeys.length];
+        this.size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null && oldTimestamps[i] >= before) {
+                int index = this.indexOf(oldKeys[i]);
+                this.keys[index] = oldKeys[i];
+                this.states[index] = oldStates[i];
+                this.timestamps[index] = oldTimestamps[i];
+                this.size++;
+            }
+        }
+        return oldSize - this.size;
+    }
+
+    /**
+     * @return  number of devices in the map
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private int indexOf(String deviceId) {
+        int mask = this.keys.length - 1;
+        int hash = deviceId.hashCode();
+        int index = (hash ^ (hash >>> 16)) & mask;
+        while (this.keys[index] != null && !this.keys[index].equals(deviceId)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void resize() {
+        String[] oldKeys = this.keys;
+        byte[] oldStates = this.states;
+        long[] oldTimestamps = this.timestamps;
+
+        this.keys = new String[oldKeys.length << 1];
+        this.states = new byte[oldKeys.length << 1];
+        this.timestamps = new long[oldKeys.length << 1];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = this.indexOf(oldKeys[i]);
+                this.keys[index] = oldKeys[i];
+                this.states[index] = oldStates[i];
+                this.timestamps[index] = oldTimestamps[i];
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CommandStateMap(size=" + this.size + ",capacity=" + this.keys.length + ")";
+    }
+}
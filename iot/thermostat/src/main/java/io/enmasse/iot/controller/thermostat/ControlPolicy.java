@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.controller.thermostat;
+
+/**
+ * Decides which command to send to a device for a notified temperature.
+ *
+ * A valve is opened below the min temperature and closed above the max one but,
+ * once open (closed), it's closed (opened) only when the temperature goes beyond
+ * the max (min) by the hysteresis. The same command is sent again only after the
+ * resend interval, so the control traffic follows the valves state changes and
+ * not the telemetry rate. A command which fails to be sent is allowed again
+ * on the next notification, and the devices without commands for longer than
+ * the state expiry are forgotten.
+ */
+public class ControlPolicy {
+
+    private final int minTemp;
+    private final int maxTemp;
+    private final int hysteresis;
+    private final long resendInterval;
+    private final long stateExpiry;
+    private final CommandStateMap states = new CommandStateMap(1024);
+
+    /**
+     * Constructor
+     *
+     * @param minTemp   temperature below which the valve is opened
+     * @param maxTemp   temperature above which the valve is closed
+     * @param hysteresis    degrees to go beyond min/max for changing the valve state
+     * @param resendInterval    min time (ms) before sending the same command again
+     * @param stateExpiry   time (ms) after which the last command sent to a device is forgotten
+     */
+    public ControlPolicy(int minTemp, int maxTemp, int hysteresis, long resendInterval, long stateExpiry) {
+        this.minTemp = minTemp;
+        this.maxTemp = maxTemp;
+        this.hysteresis = hysteresis;
+        this.resendInterval = resendInterval;
+        this.stateExpiry = stateExpiry;
+    }
+
+    /**
+     * Return the command to send to a device, recording it as sent
+     *
+     * @param deviceId  device identifier
+     * @param temperature   notified temperature
+     * @param now   current time (ms)
+     * @return  command to send, CommandStateMap.NONE if nothing has to be sent
+     */
+    public byte decide(String deviceId, int temperature, long now) {
+
+        byte state = this.states.state(deviceId);
+
+        byte command;
+        if (temperature < this.minTemp - (state == CommandStateMap.CLOSE ? this.hysteresis : 0)) {
+            command = CommandStateMap.OPEN;
+        } else if (temperature > this.maxTemp + (state == CommandStateMap.OPEN ? this.hysteresis : 0)) {
+            command = CommandStateMap.CLOSE;
+        } else {
+            return CommandStateMap.NONE;
+        }
+
+        if (command == state && now - this.states.timestamp(deviceId) < this.resendInterval) {
+            return CommandStateMap.NONE;
+        }
+        this.states.put(deviceId, command, now);
+        return command;
+    }
+
+    /**
+     * Record that a command returned by decide wasn't sent, so that it's not
+     * suppressed for the resend interval
+     *
+     * @param deviceId  device identifier
+     * @param command   command which failed
+     */
+    public void failed(String deviceId, byte command) {
+        if (this.states.state(deviceId) == command) {
+            this.states.put(deviceId, command, 0);
+        }
+    }
+
+    /**
+     * Forget the devices without commands sent for longer than the state expiry
+     *
+     * @param now   current time (ms)
+     * @return  number of devices forgotten
+     */
+    public int evict(long now) {
+        return this.states.evict(now - this.stateExpiry);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.controller.thermostat;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonDelivery;
+import io.vertx.proton.ProtonSender;
+import org.apache.qpid.proton.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Senders for the control messages to the devices.
+ *
+ * The sender links are kept open in a bounded LRU cache keyed by address,
+ * closing the ones idle for more than the idle timeout and re-creating them
+ * when detached by the remote. When enabled and supported by the remote, a single
+ * anonymous relay link is used instead, setting the address on each message.
+ * Every message sent is completed, with the settled delivery or with a failure
+ * when its link fails to attach or is closed before the delivery is settled.
+ * It must be used on the connection context only.
+ */
+public class ControlSenders {
+
+    private static final Logger log = LoggerFactory.getLogger(ControlSenders.class);
+
+    private final Vertx vertx;
+    private final ProtonConnection connection;
+    private final long idleTimeout;
+    private final boolean anonymous;
+    private final Map<String, CachedSender> senders;
+    private final long timerId;
+
+    private CachedSender anonymousSender;
+
+    /**
+     * Constructor
+     *
+     * @param vertx Vert.x instance
+     * @param connection    connection on which creating the sender links
+     * @param maxSize   max number of cached sender links
+     * @param idleTimeout   time (ms) after which an unused sender link is closed
+     * @param anonymous if an anonymous relay link has to be used when supported
+     */
+    public ControlSenders(Vertx vertx, ProtonConnection connection, int maxSize, long idleTimeout, boolean anonymous) {
+        this.vertx = vertx;
+        this.connection = connection;
+        this.idleTimeout = idleTimeout;
+        this.anonymous = anonymous;
+        this.senders = new LinkedHashMap<String, CachedSender>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSender> eldest) {
+                if (size() > maxSize) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.timerId = vertx.setPeriodic(Math.max(idleTimeout / 2, 1), t -> this.evictIdle());
+    }
+
+    /**
+     * Send a message to the provided address
+     *
+     * @param address   address to send the message
+     * @param message   message to send
+     * @param deliveryHandler   handler called with the delivery when the message is settled, or with a failure when it can't be
+     */
+    public void send(String address, Message message, Handler<AsyncResult<ProtonDelivery>> deliveryHandler) {
+
+        message.setAddress(address);
+
+        CachedSender sender;
+        if (this.anonymous && this.connection.isAnonymousRelaySupported()) {
+            if (this.anonymousSender == null) {
+                this.anonymousSender = new CachedSender(null);
+            }
+            sender = this.anonymousSender;
+        } else {
+            sender = this.senders.get(address);
+            if (sender == null) {
+                sender = new CachedSender(address);
+                this.senders.put(address, sender);
+            }
+        }
+        sender.send(message, deliveryHandler);
+    }
+
+    /**
+     * Close all the sender links
+     */
+    public void close() {
+        this.vertx.cancelTimer(this.timerId);
+        for (CachedSender sender : this.senders.values()) {
+            sender.close();
+        }
+        this.senders.clear();
+        if (this.anonymousSender != null) {
+            this.anonymousSender.close();
+            this.anonymousSender = null;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedSender> iterator = this.senders.values().iterator();
+        while (iterator.hasNext()) {
+            CachedSender sender = iterator.next();
+            if (now - sender.lastUsed > this.idleTimeout) {
+                log.debug("Closing idle sender on {}", sender.address);
+                sender.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void removed(CachedSender sender) {
+        if (sender == this.anonymousSender) {
+            this.anonymousSender = null;
+        } else {
+            this.senders.remove(sender.address, sender);
+        }
+    }
+
+    private class CachedSender {
+
+        private final String address;
+        private final ProtonSender sender;
+        // messages sent while the link is attaching
+        private List<Message> pending = new ArrayList<>();
+        private List<Handler<AsyncResult<ProtonDelivery>>> pendingHandlers = new ArrayList<>();
+        // messages sent on the link and not settled yet
+        private final Map<ProtonDelivery, Handler<AsyncResult<ProtonDelivery>>> unsettled = new LinkedHashMap<>();
+        private long lastUsed;
+        private boolean closed;
+
+        CachedSender(String address) {
+            this.address = address;
+            this.sender = connection.createSender(address);
+            this.sender.openHandler(link -> {
+                if (this.closed) {
+                    return;
+                }
+                if (link.succeeded()) {
+                    List<Message> messages = this.pending;
+                    List<Handler<AsyncResult<ProtonDelivery>>> handlers = this.pendingHandlers;
+                    this.pending = null;
+                    this.pendingHandlers = null;
+                    for (int i = 0; i < messages.size(); i++) {
+                        this.doSend(messages.get(i), handlers.get(i));
+                    }
+                } else {
+                    log.warn("Error attaching sender to {}, {} messages failed", this.address, this.pending.size(), link.cause());
+                    this.detached();
+                }
+            });
+            this.sender.closeHandler(link -> this.detached());
+            this.sender.detachHandler(link -> this.detached());
+            this.sender.open();
+        }
+
+        void send(Message message, Handler<AsyncResult<ProtonDelivery>> deliveryHandler) {
+            this.lastUsed = System.currentTimeMillis();
+            if (this.pending != null) {
+                this.pending.add(message);
+                this.pendingHandlers.add(deliveryHandler);
+            } else {
+                this.doSend(message, deliveryHandler);
+            }
+        }
+
+        private void doSend(Message message, Handler<AsyncResult<ProtonDelivery>> deliveryHandler) {
+            ProtonDelivery sent = this.sender.send(message, delivery -> {
+                Handler<AsyncResult<ProtonDelivery>> handler = this.unsettled.remove(delivery);
+                if (handler != null) {
+                    handler.handle(Future.succeededFuture(delivery));
+                }
+            });
+            this.unsettled.put(sent, deliveryHandler);
+        }
+
+        void close() {
+            if (!this.closed) {
+                this.closed = true;
+                this.sender.close();
+
+                // called later, the handlers can send again while the cache is being updated
+                List<Handler<AsyncResult<ProtonDelivery>>> failed = new ArrayList<>(this.unsettled.values());
+                if (this.pendingHandlers != null) {
+                    failed.addAll(this.pendingHandlers);
+                }
+                this.unsettled.clear();
+                this.pending = null;
+                this.pendingHandlers = null;
+                if (!failed.isEmpty()) {
+                    log.debug("Sender on {} closed with {} messages not settled", this.address, failed.size());
+                    Future<ProtonDelivery> closed = Future.failedFuture("Sender link to " + this.address + " closed");
+                    vertx.runOnContext(v -> failed.forEach(handler -> handler.handle(closed)));
+                }
+            }
+        }
+
+        private void detached() {
+            // next message to the same address will re-create the link
+            removed(this);
+            this.close();
+        }
+    }
+}
@@ -16,51 +16,152 @@
 
 package io.enmasse.iot.controller.thermostat;
 
+import io.enmasse.iot.common.Backoff;
+import io.enmasse.iot.common.BinaryCodec;
+import io.enmasse.iot.common.DevicePartitions;
+import io.enmasse.iot.common.LatencyTracker;
+import io.enmasse.iot.common.MetricsServer;
+import io.enmasse.iot.common.PayloadFormat;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.PemTrustOptions;
 import io.vertx.proton.*;
 import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.messaging.Modified;
+import org.apache.qpid.proton.amqp.messaging.Rejected;
 import org.apache.qpid.proton.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Thermostat extends AbstractVerticle {
     private static final Logger log = LoggerFactory.getLogger(Thermostat.class);
 
+    // shared by all the verticle instances
+    private static final Counter notificationsAccepted = Metrics.counter("iot.thermostat.notifications", "outcome", "accepted");
+    private static final Counter notificationsRejected = Metrics.counter("iot.thermostat.notifications", "outcome", "rejected");
+    private static final Counter notificationsModified = Metrics.counter("iot.thermostat.notifications", "outcome", "modified");
+    private static final Counter commandsOpen = Metrics.counter("iot.thermostat.commands", "operation", "open");
+    private static final Counter commandsClose = Metrics.counter("iot.thermostat.commands", "operation", "close");
+    // from the notification received to the command settled by the messaging service
+    private static final Timer commandLatency = Timer.builder("iot.thermostat.command.latency")
+            .description("Time from a notification received to the control command it caused sent")
+            .register(Metrics.globalRegistry);
+    // from the analyzer sending the max value, and from the sensor reading, to the notification received
+    private static final LatencyTracker hopLatency = LatencyTracker.of("thermostat.hop");
+    private static final LatencyTracker totalLatency = LatencyTracker.of("thermostat.total");
+
     private final String messagingHost;
     private final int messagingPort;
     private final String username;
     private final String password;
     private final String serverCert;
-    private final String notificationAddress;
+    private final List<String> notificationAddresses;
     private final String controlPrefix;
     private final int minTemp;
     private final int maxTemp;
+    private final PayloadFormat controlFormat;
+    private final int senderCacheSize;
+    private final long senderIdleTimeout;
+    private final boolean senderAnonymous;
+    private final ControlPolicy controlPolicy;
+    private final long commandStateExpiry;
+    private final int prefetch;
+    private final int creditWindow;
+    private final int settleBatch;
+    private final long settleInterval;
+    private final long commandTimeout;
+    private final Backoff backoff;
+    // notifications processed with all their commands sent, waiting to be accepted
+    private final List<Notification> settleable = new ArrayList<>();
     private ProtonConnection connection;
+    private ControlSenders controlSenders;
 
-    public Thermostat(String messagingHost, int messagingPort, String username, String password, String serverCert, String notificationAddress, String controlPrefix, int minTemp, int maxTemp) {
+    public Thermostat(String messagingHost, int messagingPort, String username, String password, String serverCert, List<String> notificationAddresses, String controlPrefix, int minTemp, int maxTemp, Properties config) {
         this.messagingHost = messagingHost;
         this.messagingPort = messagingPort;
         this.username = username;
         this.password = password;
         this.serverCert = serverCert;
-        this.notificationAddress = notificationAddress;
+        this.notificationAddresses = notificationAddresses;
         this.controlPrefix = controlPrefix;
         this.minTemp = minTemp;
         this.maxTemp = maxTemp;
+        this.controlFormat = PayloadFormat.fromConfig(config.getProperty(ThermostatConfig.PAYLOAD_FORMAT));
+        this.senderCacheSize = Integer.parseInt(config.getProperty(ThermostatConfig.SENDER_CACHE_SIZE, "1000"));
+        this.senderIdleTimeout = Long.parseLong(config.getProperty(ThermostatConfig.SENDER_IDLE_TIMEOUT, "60000"));
+        this.senderAnonymous = Boolean.parseBoolean(config.getProperty(ThermostatConfig.SENDER_ANONYMOUS, "false"));
+        this.commandStateExpiry = Long.parseLong(config.getProperty(ThermostatConfig.COMMAND_STATE_EXPIRY, "600000"));
+        this.controlPolicy = new ControlPolicy(minTemp, maxTemp,
+                Integer.parseInt(config.getProperty(ThermostatConfig.TEMPERATURE_HYSTERESIS, "0")),
+                Long.parseLong(config.getProperty(ThermostatConfig.COMMAND_RESEND_INTERVAL, "60000")),
+                this.commandStateExpiry);
+        this.prefetch = Integer.parseInt(config.getProperty(ThermostatConfig.NOTIFICATION_PREFETCH, "1000"));
+        this.creditWindow = Integer.parseInt(config.getProperty(ThermostatConfig.NOTIFICATION_CREDIT_WINDOW, "1000"));
+        this.settleBatch = Integer.parseInt(config.getProperty(ThermostatConfig.NOTIFICATION_SETTLE_BATCH, "100"));
+        this.settleInterval = Long.parseLong(config.getProperty(ThermostatConfig.NOTIFICATION_SETTLE_INTERVAL, "100"));
+        this.commandTimeout = Long.parseLong(config.getProperty(ThermostatConfig.NOTIFICATION_COMMAND_TIMEOUT, "10000"));
+        this.backoff = new Backoff(
+                Long.parseLong(config.getProperty(ThermostatConfig.RECONNECT_DELAY_MIN, "1000")),
+                Long.parseLong(config.getProperty(ThermostatConfig.RECONNECT_DELAY_MAX, "60000")));
     }
 
     @Override
     public void start(Future<Void> startPromise) {
+        vertx.setPeriodic(settleInterval, t -> settle());
+        vertx.setPeriodic(Math.max(commandStateExpiry / 2, 1), t -> {
+            int evicted = controlPolicy.evict(System.currentTimeMillis());
+            log.debug("Forgot the commands of {} devices", evicted);
+        });
+        connect(startPromise);
+    }
+
+    /**
+     * Connect and attach to the notification addresses, completing the start
+     * promise on the first connection or reconnecting on failure afterwards
+     */
+    private void connect(Future<Void> startPromise) {
+        Future<Void> attached = Future.future();
+        attached.setHandler(done -> {
+            if (done.succeeded()) {
+                backoff.reset();
+                if (startPromise != null) {
+                    startPromise.complete();
+                }
+            } else {
+                if (connection != null) {
+                    // the connection is closed by the caller, no need to handle it as lost
+                    controlSenders.close();
+                    controlSenders = null;
+                    connection = null;
+                }
+                if (startPromise != null) {
+                    startPromise.fail(done.cause());
+                } else {
+                    reconnect();
+                }
+            }
+        });
+
         ProtonClient alarmClient = ProtonClient.create(vertx);
         ProtonClientOptions options = new ProtonClientOptions();
         if (serverCert != null ){
@@ -73,87 +174,323 @@ public class Thermostat extends AbstractVerticle {
             if (connection.succeeded()) {
                 log.info("Connected to {}:{}", messagingHost, messagingPort);
                 ProtonConnection connectionHandle = connection.result();
-                connectionHandle.open();
-
-                ProtonReceiver receiver = connectionHandle.createReceiver(notificationAddress);
-                receiver.handler(this::handleNotification);
-                receiver.openHandler(link -> {
-                    if (link.succeeded()) {
-                        startPromise.complete();
-                    } else {
-                        log.info("Error attaching to {}", notificationAddress, link.cause());
-                        startPromise.fail(link.cause());
+                // lost while still attaching, it's a failed connection attempt
+                connectionHandle.closeHandler(c -> {
+                    connectionHandle.close();
+                    if (!attached.tryFail("Connection closed")) {
+                        connectionLost(connectionHandle);
+                    }
+                });
+                connectionHandle.disconnectHandler(c -> {
+                    if (!attached.tryFail("Connection lost")) {
+                        connectionLost(connectionHandle);
                     }
                 });
-                receiver.open();
+                connectionHandle.open();
+
+                // each verticle instance consumes its own partitions, so the notifications for a device are never reordered
+                AtomicInteger attaching = new AtomicInteger(notificationAddresses.size());
+                for (String notificationAddress : notificationAddresses) {
+
+                    // notifications are accepted only after the commands they caused are sent (at-least-once),
+                    // with a prefetch of 0 the credit is given back only when they are accepted
+                    ProtonReceiver receiver = connectionHandle.createReceiver(notificationAddress);
+                    receiver.setAutoAccept(false);
+                    receiver.setPrefetch(prefetch);
+                    receiver.handler((delivery, message) -> handleNotification(receiver, delivery, message));
+                    receiver.openHandler(link -> {
+                        if (link.succeeded()) {
+                            log.info("Attached to {}", notificationAddress);
+                            if (prefetch == 0) {
+                                receiver.flow(creditWindow);
+                            }
+                            if (attaching.decrementAndGet() == 0) {
+                                attached.tryComplete();
+                            }
+                        } else {
+                            log.info("Error attaching to {}", notificationAddress, link.cause());
+                            if (attached.tryFail(link.cause())) {
+                                connectionHandle.close();
+                            }
+                        }
+                    });
+                    receiver.open();
+                }
                 this.connection = connectionHandle;
+                this.controlSenders = new ControlSenders(vertx, connectionHandle, senderCacheSize, senderIdleTimeout, senderAnonymous);
             } else {
                 log.info("Error connecting to {}:{}", messagingHost, messagingPort);
-                startPromise.fail(connection.cause());
+                attached.fail(connection.cause());
             }
         });
     }
 
-    private void handleNotification(ProtonDelivery delivery, Message message) {
-        JsonObject json = new JsonObject(Buffer.buffer(((Data) message.getBody()).getValue().getArray()));
+    /**
+     * Drop the state bound to the lost connection and reconnect : the notifications
+     * not accepted yet are redelivered by the messaging service
+     */
+    private void connectionLost(ProtonConnection lost) {
+        if (connection != lost) {
+            return;
+        }
+        log.warn("Connection to {}:{} lost", messagingHost, messagingPort);
+        connection = null;
+        controlSenders.close();
+        controlSenders = null;
+        settleable.clear();
+        reconnect();
+    }
+
+    private void reconnect() {
+        long delay = backoff.next();
+        log.info("Reconnecting to {}:{} in {} ms", messagingHost, messagingPort, delay);
+        vertx.setTimer(delay, t -> connect(null));
+    }
+
+    private void handleNotification(ProtonReceiver receiver, ProtonDelivery delivery, Message message) {
+        Notification notification = new Notification(receiver, delivery);
+        hopLatency.record(message.getCreationTime());
+        try {
+            Binary body = ((Data) message.getBody()).getValue();
+
+            if (PayloadFormat.of(message.getContentType(), body.getArray(), body.getArrayOffset(), body.getLength()) == PayloadFormat.BINARY) {
+
+                log.debug("Received notification with binary payload");
+                long timestamp = BinaryCodec.timestamp(body.getArray(), body.getArrayOffset(), body.getLength());
+                BinaryCodec.decodeTemperatures(body.getArray(), body.getArrayOffset(), body.getLength(),
+                        (deviceId, temperature) -> adjustTemperature(deviceId, temperature, timestamp, notification));
+
+            } else {
+
+                Buffer payload = Buffer.buffer(body.getArray()).slice(body.getArrayOffset(), body.getArrayOffset() + body.getLength());
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Received notification with payload {}", payload);
+                }
+
+                // the analyzer can pack more max values in a single message as a JSON array
+                if (payload.length() > 0 && payload.getByte(0) == '[') {
+                    JsonArray jsonArray = payload.toJsonArray();
+                    for (int i = 0; i < jsonArray.size(); i++) {
+                        handleMax(jsonArray.getJsonObject(i), notification);
+                    }
+                } else {
+                    handleMax(payload.toJsonObject(), notification);
+                }
+            }
+        } catch (DecodeException | IllegalArgumentException | ClassCastException e) {
+            log.error("Error decoding notification, rejected", e);
+            // the commands already sent for it complete without settling it again
+            notification.complete();
+            delivery.disposition(new Rejected(), true);
+            notificationsRejected.increment();
+            if (prefetch == 0) {
+                receiver.flow(1);
+            }
+            return;
+        }
+        notification.done();
+    }
+
+    private void handleMax(JsonObject json, Notification notification) {
         String deviceId = json.getString("device-id");
         int temperature = json.getInteger("temperature");
+        long timestamp = json.getLong("timestamp", 0L);
 
-        log.info("Received notification with payload {}", json);
-
-        adjustTemperature(deviceId, temperature);
+        adjustTemperature(deviceId, temperature, timestamp, notification);
     }
 
-    private void adjustTemperature(String deviceId, int temperature) {
-        if (temperature < minTemp) {
-            sendCommand(deviceId, "open", temperature);
-        } else if (temperature > maxTemp) {
-            sendCommand(deviceId, "close", temperature);
+    private void adjustTemperature(String deviceId, int temperature, long timestamp, Notification notification) {
+        totalLatency.record(timestamp);
+        byte command = controlPolicy.decide(deviceId, temperature, System.currentTimeMillis());
+        if (command == CommandStateMap.OPEN) {
+            sendCommand(deviceId, "open", temperature, timestamp, notification);
+        } else if (command == CommandStateMap.CLOSE) {
+            sendCommand(deviceId, "close", temperature, timestamp, notification);
         }
     }
 
-    private void sendCommand(String deviceId, String command, int temperature) {
+    private void sendCommand(String deviceId, String command, int temperature, long timestamp, Notification notification) {
         String address = controlPrefix + "/" + deviceId;
-        ProtonSender sender = connection.createSender(address);
 
-        JsonObject json = new JsonObject();
-        json.put("device-id", deviceId);
-        json.put("operation", command);
-        json.put("max", temperature);
+        // the sensor reading time goes along with the command, for tracing the latency up to the valve
+        byte[] payload;
+        if (controlFormat == PayloadFormat.BINARY) {
+            payload = BinaryCodec.encodeCommand(deviceId, command, temperature, timestamp);
+        } else {
+            JsonObject json = new JsonObject();
+            json.put("device-id", deviceId);
+            json.put("operation", command);
+            json.put("max", temperature);
+            if (timestamp > 0) {
+                json.put("timestamp", timestamp);
+            }
+            payload = json.toBuffer().getBytes();
+        }
         Message controlMessage = Message.Factory.create();
 
-        controlMessage.setAddress(address);
-        controlMessage.setBody(new Data(new Binary(json.toBuffer().getBytes())));
+        controlMessage.setContentType(controlFormat.contentType());
+        controlMessage.setCreationTime(System.currentTimeMillis());
+        controlMessage.setBody(new Data(new Binary(payload)));
 
-        sender.openHandler(link -> {
-            if (link.succeeded()) {
-                log.info("Sending control to {}: {}", address, json);
-                sender.send(controlMessage, delivery -> {
-                    log.info("... sent {}", new String(delivery.getTag()));
-                    sender.close();
-                });
+        log.debug("Sending {} control to {}", command, address);
+        notification.pending++;
+        controlSenders.send(address, controlMessage, sent -> {
+            if (sent.succeeded() && sent.result().getRemoteState() instanceof Accepted) {
+                log.debug("... sent {}", address);
+                ("open".equals(command) ? commandsOpen : commandsClose).increment();
+                commandLatency.record(System.nanoTime() - notification.received, TimeUnit.NANOSECONDS);
+                notification.done();
             } else {
-                log.info("Error sending control message to {}", deviceId);
+                if (sent.succeeded()) {
+                    log.warn("Control {} to {} not accepted : {}", command, address, sent.result().getRemoteState());
+                } else {
+                    log.warn("Error sending {} control to {}", command, address, sent.cause());
+                }
+                controlPolicy.failed(deviceId, "open".equals(command) ? CommandStateMap.OPEN : CommandStateMap.CLOSE);
+                notification.failed();
             }
         });
-        sender.closeHandler(link -> {
-            sender.close();
-        });
-        sender.open();
+    }
+
+    /**
+     * Accept the notifications which are completely processed, giving back
+     * the credits when there is no prefetch
+     */
+    private void settle() {
+        if (settleable.isEmpty()) {
+            return;
+        }
+        Map<ProtonReceiver, Integer> credits = new HashMap<>();
+        for (Notification notification : settleable) {
+            notification.delivery.disposition(Accepted.getInstance(), true);
+            notificationsAccepted.increment();
+            credits.merge(notification.receiver, 1, Integer::sum);
+        }
+        settleable.clear();
+        if (prefetch == 0) {
+            credits.forEach(ProtonReceiver::flow);
+        }
+    }
+
+    /**
+     * A received notification, waiting for the commands it caused to be sent.
+     * When any of them fails, or they aren't all sent within the command timeout,
+     * the notification is given back to the messaging service for being redelivered
+     */
+    private class Notification {
+
+        private final ProtonReceiver receiver;
+        private final ProtonDelivery delivery;
+        private final long received = System.nanoTime();
+        // commands not sent yet, plus one while the notification is processed
+        private int pending = 1;
+        private boolean completed;
+        private long timerId = -1;
+
+        Notification(ProtonReceiver receiver, ProtonDelivery delivery) {
+            this.receiver = receiver;
+            this.delivery = delivery;
+        }
+
+        void done() {
+            // commands completed after the connection was lost, the notification will be redelivered
+            if (this.completed || this.receiver.getSession().getConnection() != connection) {
+                return;
+            }
+            if (--this.pending == 0) {
+                this.complete();
+                settleable.add(this);
+                if (settleable.size() >= settleBatch) {
+                    settle();
+                }
+            } else if (this.timerId == -1) {
+                // processed, waiting only for the commands
+                this.timerId = vertx.setTimer(commandTimeout, t -> {
+                    log.warn("Timeout sending the controls for a notification, {} not sent", this.pending);
+                    this.timerId = -1;
+                    this.failed();
+                });
+            }
+        }
+
+        void failed() {
+            if (this.completed || this.receiver.getSession().getConnection() != connection) {
+                return;
+            }
+            this.complete();
+            Modified modified = new Modified();
+            modified.setDeliveryFailed(true);
+            this.delivery.disposition(modified, true);
+            notificationsModified.increment();
+            if (prefetch == 0) {
+                this.receiver.flow(1);
+            }
+        }
+
+        void complete() {
+            this.completed = true;
+            if (this.timerId != -1) {
+                vertx.cancelTimer(this.timerId);
+                this.timerId = -1;
+            }
+        }
     }
 
     public static void main(String [] args) throws Exception {
         Properties properties = loadProperties("config.properties");
         AppCredentials appCredentials = AppCredentials.create();
 
-        String maxAddress = properties.getProperty("address.max", "max");
-        String controlPrefix = properties.getProperty("address.control.prefix", "control");
+        String maxAddress = properties.getProperty(ThermostatConfig.MAX_ADDRESS, "max");
+        String controlPrefix = properties.getProperty(ThermostatConfig.CONTROL_PREFIX, "control");
 
-        int minTemp = Integer.parseInt(properties.getProperty("control.temperature.min", "15"));
-        int maxTemp = Integer.parseInt(properties.getProperty("control.temperature.max", "25"));
+        int minTemp = Integer.parseInt(properties.getProperty(ThermostatConfig.TEMPERATURE_MIN, "15"));
+        int maxTemp = Integer.parseInt(properties.getProperty(ThermostatConfig.TEMPERATURE_MAX, "25"));
+
+        // max values can be spread across partitioned addresses (max/0 ... max/N-1), this process consumes the assigned ones
+        int partitions = Integer.parseInt(properties.getProperty(ThermostatConfig.MAX_PARTITIONS, "1"));
+        List<Integer> assigned = parsePartitions(properties.getProperty(ThermostatConfig.MAX_PARTITIONS_ASSIGNED), partitions);
+        int instances = Integer.parseInt(properties.getProperty(ThermostatConfig.INSTANCES,
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        instances = Math.max(1, Math.min(instances, assigned.size()));
 
         Vertx vertx = Vertx.vertx();
-        vertx.deployVerticle(new Thermostat(appCredentials.getHostname(), appCredentials.getPort(), appCredentials.getUsername(), appCredentials.getPassword(), appCredentials.getX509Certificate(), maxAddress, controlPrefix, minTemp, maxTemp));
+        int metricsPort = Integer.parseInt(properties.getProperty(ThermostatConfig.METRICS_PORT, "0"));
+        if (metricsPort > 0) {
+            MetricsServer.start(vertx, metricsPort);
+        }
+        LatencyTracker.open(properties.getProperty(ThermostatConfig.LATENCY_LOG));
+        for (int i = 0; i < instances; i++) {
+
+            List<String> notificationAddresses = new ArrayList<>();
+            for (int j = i; j < assigned.size(); j += instances) {
+                notificationAddresses.add(DevicePartitions.address(maxAddress, assigned.get(j), partitions));
+            }
+            log.info("Deploying thermostat instance for {}", notificationAddresses);
+            vertx.deployVerticle(new Thermostat(appCredentials.getHostname(), appCredentials.getPort(), appCredentials.getUsername(), appCredentials.getPassword(), appCredentials.getX509Certificate(), notificationAddresses, controlPrefix, minTemp, maxTemp, properties));
+        }
+    }
+
+    /**
+     * Parse the assigned partitions list (i.e. "0-3,6,8"), all the partitions when not provided
+     */
+    private static List<Integer> parsePartitions(String value, int partitions) {
+        List<Integer> assigned = new ArrayList<>();
+        if (value == null || value.trim().isEmpty()) {
+            for (int i = 0; i < partitions; i++) {
+                assigned.add(i);
+            }
+        } else {
+            for (String range : value.split(",")) {
+                String[] bounds = range.trim().split("-");
+                int from = Integer.parseInt(bounds[0].trim());
+                int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+                for (int i = from; i <= to; i++) {
+                    assigned.add(i);
+                }
+            }
+        }
+        return assigned;
     }
 
     private static Properties loadProperties(String resource) throws IOException {
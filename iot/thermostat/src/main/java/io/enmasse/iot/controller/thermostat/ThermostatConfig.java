@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 Red Hat Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.enmasse.iot.controller.thermostat;
+
+/**
+ * Configuration properties for the thermostat
+ */
+public class ThermostatConfig {
+
+    public static final String MAX_ADDRESS = "address.max";
+    public static final String MAX_PARTITIONS = "address.max.partitions";
+    public static final String MAX_PARTITIONS_ASSIGNED = "address.max.partitions.assigned";
+    public static final String CONTROL_PREFIX = "address.control.prefix";
+
+    public static final String INSTANCES = "thermostat.instances";
+    public static final String RECONNECT_DELAY_MIN = "thermostat.reconnect.delay.min";
+    public static final String RECONNECT_DELAY_MAX = "thermostat.reconnect.delay.max";
+    public static final String METRICS_PORT = "thermostat.metrics.port";
+    public static final String LATENCY_LOG = "thermostat.latency.log";
+
+    public static final String NOTIFICATION_PREFETCH = "notification.prefetch";
+    public static final String NOTIFICATION_CREDIT_WINDOW = "notification.credit.window";
+    public static final String NOTIFICATION_SETTLE_BATCH = "notification.settle.batch";
+    public static final String NOTIFICATION_SETTLE_INTERVAL = "notification.settle.interval";
+    public static final String NOTIFICATION_COMMAND_TIMEOUT = "notification.command.timeout";
+
+    public static final String TEMPERATURE_MIN = "control.temperature.min";
+    public static final String TEMPERATURE_MAX = "control.temperature.max";
+    public static final String TEMPERATURE_HYSTERESIS = "control.temperature.hysteresis";
+    public static final String COMMAND_RESEND_INTERVAL = "control.command.resend.interval";
+    public static final String COMMAND_STATE_EXPIRY = "control.command.state.expiry";
+    public static final String PAYLOAD_FORMAT = "control.payload.format";
+
+    public static final String SENDER_CACHE_SIZE = "control.sender.cache.size";
+    public static final String SENDER_IDLE_TIMEOUT = "control.sender.idle.timeout";
+    public static final String SENDER_ANONYMOUS = "control.sender.anonymous";
+}